@@ -0,0 +1,205 @@
+package com.protto.jws;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPool {
+  
+  private class SizeClass {
+    public final int size;
+    public final int limit;
+    public final AtomicInteger count;
+    public final Queue<ByteBuffer> buffers;
+    
+    public SizeClass(final int size) {
+      this.size = size;
+      limit = Math.max(1, maxClassBytes / size);
+      count = new AtomicInteger();
+      buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+  
+  private class ThreadCache {
+    public final ArrayDeque<ByteBuffer>[] direct;
+    public final ArrayDeque<ByteBuffer>[] heap;
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ThreadCache() {
+      direct = new ArrayDeque[classCount];
+      heap = new ArrayDeque[classCount];
+      for (int i = 0; i < classCount; i++) {
+        direct[i] = new ArrayDeque<ByteBuffer>();
+        heap[i] = new ArrayDeque<ByteBuffer>();
+      }
+    }
+  }
+  
+  public static final int MinClassShift = 9;
+  public static final int MaxClassShift = 20;
+  // looked up reflectively so the pool still runs on pre-21 JVMs
+  private static final MethodHandle isVirtual = findIsVirtual();
+  
+  private final int classCount;
+  private final int maxClassBytes;
+  private final int maxThreadBytes;
+  private final SizeClass[] directClasses;
+  private final SizeClass[] heapClasses;
+  private final ThreadLocal<ThreadCache> threadCache;
+  
+  private final boolean leakDetection;
+  private final Map<ByteBuffer, Throwable> outstanding;
+  
+  public BufferPool() {
+    this(16 << 20, 256 << 10);
+  }
+  
+  public BufferPool(final int maxClassBytes, final int maxThreadBytes) {
+    this(maxClassBytes, maxThreadBytes, Boolean.getBoolean("jws.leakDetection"));
+  }
+  
+  // fixed for the pool's lifetime, buffers allocated before it was turned on
+  // would otherwise look like double releases
+  public BufferPool(final int maxClassBytes, final int maxThreadBytes, final boolean leakDetection) {
+    this.maxClassBytes = maxClassBytes;
+    this.maxThreadBytes = maxThreadBytes;
+    
+    classCount = MaxClassShift - MinClassShift + 1;
+    directClasses = new SizeClass[classCount];
+    heapClasses = new SizeClass[classCount];
+    for (int i = 0; i < classCount; i++) {
+      directClasses[i] = new SizeClass(1 << (MinClassShift + i));
+      heapClasses[i] = new SizeClass(1 << (MinClassShift + i));
+    }
+    
+    threadCache = ThreadLocal.withInitial(ThreadCache::new);
+    outstanding = new IdentityHashMap<ByteBuffer, Throwable>();
+    this.leakDetection = leakDetection;
+  }
+  
+  public final boolean isLeakDetection() {
+    return leakDetection;
+  }
+  
+  public ByteBuffer allocate(final int size) {
+    return allocate(size, true);
+  }
+  
+  public ByteBuffer allocateHeap(final int size) {
+    return allocate(size, false);
+  }
+  
+  public void release(final ByteBuffer buffer) {
+    if (buffer == null)
+      return;
+    if (leakDetection) {
+      synchronized (outstanding) {
+        if (outstanding.remove(buffer) == null)
+          throw new IllegalStateException("Buffer released twice or not allocated from this pool");
+      }
+    }
+    
+    final int index = classIndex(buffer.capacity());
+    if (index < 0 || (1 << (MinClassShift + index)) != buffer.capacity())
+      return;
+    
+    buffer.clear();
+    final ThreadCache local = threadCache();
+    if (local != null) {
+      final ArrayDeque<ByteBuffer> cache = buffer.isDirect() ? local.direct[index] : local.heap[index];
+      if ((cache.size() + 1) * buffer.capacity() <= maxThreadBytes) {
+        cache.push(buffer);
+        return;
+      }
+    }
+    
+    final SizeClass sizeClass = buffer.isDirect() ? directClasses[index] : heapClasses[index];
+    if (sizeClass.count.incrementAndGet() <= sizeClass.limit)
+      sizeClass.buffers.add(buffer);
+    else
+      sizeClass.count.decrementAndGet();
+  }
+  
+  public int outstanding() {
+    synchronized (outstanding) {
+      return outstanding.size();
+    }
+  }
+  
+  public void reportLeaks() {
+    synchronized (outstanding) {
+      for (final Throwable site : outstanding.values()) {
+        System.err.println("Leaked pooled buffer, allocated at:");
+        site.printStackTrace();
+      }
+    }
+  }
+  
+  private ByteBuffer allocate(final int size, final boolean direct) {
+    final int index = classIndex(size);
+    ByteBuffer buffer = null;
+    
+    if (index >= 0) {
+      final ThreadCache local = threadCache();
+      if (local != null)
+        buffer = direct ? local.direct[index].poll() : local.heap[index].poll();
+      
+      if (buffer == null) {
+        final SizeClass sizeClass = direct ? directClasses[index] : heapClasses[index];
+        buffer = sizeClass.buffers.poll();
+        if (buffer != null)
+          sizeClass.count.decrementAndGet();
+        else if (direct)
+          buffer = ByteBuffer.allocateDirect(sizeClass.size);
+        else
+          buffer = ByteBuffer.allocate(sizeClass.size);
+      }
+    } else {
+      buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+    
+    if (leakDetection) {
+      synchronized (outstanding) {
+        outstanding.put(buffer, new Throwable());
+      }
+    }
+    
+    buffer.limit(size);
+    return buffer;
+  }
+  
+  private ThreadCache threadCache() {
+    // virtual threads live for one task, buffers cached there would be lost with the thread
+    if (isVirtual != null) {
+      try {
+        if ((boolean)isVirtual.invokeExact(Thread.currentThread()))
+          return null;
+      } catch (Throwable ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+    return threadCache.get();
+  }
+  
+  private static MethodHandle findIsVirtual() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+    } catch (ReflectiveOperationException ex) {
+      return null;
+    }
+  }
+  
+  private static int classIndex(final int size) {
+    final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    if (shift > MaxClassShift)
+      return -1;
+    return Math.max(shift, MinClassShift) - MinClassShift;
+  }
+}
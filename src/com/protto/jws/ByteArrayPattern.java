@@ -1,5 +1,7 @@
 package com.protto.jws;
 
+import java.nio.ByteBuffer;
+
 public class ByteArrayPattern {
 
   private int i, j;
@@ -51,4 +53,25 @@ public class ByteArrayPattern {
     
     return -1;
   }
+  
+  public int find(final ByteBuffer search, final int start, final int size) {
+    if (pattern.length == 0)
+      return 0;
+    if (size == 0)
+      return -1;
+    
+    int k = 0, m = 0;
+    while (m + k < size) {
+      if (pattern[k] == search.get(start + m + k)) {
+        if (k == pattern.length - 1)
+          return m;
+        k++;
+      } else {
+        m = (m + k - table[k]);
+        k = table[k] > -1 ? table[k] : 0;
+      }
+    }
+    
+    return -1;
+  }
 }
@@ -1,5 +1,6 @@
 package com.protto.jws;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class ByteArrayStream {
@@ -8,6 +9,8 @@ public class ByteArrayStream {
   private volatile int maximum;
   private volatile int position;
   private volatile byte[] stream;
+  private volatile ByteBuffer pooled;
+  private final BufferPool pool;
   public static int DefaultSize = 1024;
   
   public ByteArrayStream() {
@@ -16,11 +19,20 @@ public class ByteArrayStream {
   
   public ByteArrayStream(final int max) {
     stream = new byte[max];
+    pool = null;
     length = 0;
     position = 0;
     maximum = max;
   }
   
+  public ByteArrayStream(final BufferPool pool) {
+    this.pool = pool;
+    stream = null;
+    length = 0;
+    position = 0;
+    maximum = 0;
+  }
+  
   public byte[] data() {
     return stream;
   }
@@ -38,6 +50,9 @@ public class ByteArrayStream {
   }
   
   public void clear() {
+    if (pooled != null)
+      pool.release(pooled);
+    pooled = null;
     stream = null;
     length = 0;
     maximum = 0;
@@ -55,22 +70,48 @@ public class ByteArrayStream {
     byte[] output = new byte[amount];
     System.arraycopy(stream, position, output, 0, amount);
     position += amount;
+    if (pool != null && position == length)
+      clear();
     return output;
   }
   
   public void write(final byte[] data, final int amount) {
     if (amount < 1)
       return;
-    if (position != 0) {
+    reserve(amount);
+    System.arraycopy(data, 0, stream, length, amount);
+    length += amount;
+  }
+  
+  public void write(final ByteBuffer data) {
+    final int amount = data.remaining();
+    if (amount < 1)
+      return;
+    reserve(amount);
+    data.get(stream, length, amount);
+    length += amount;
+  }
+  
+  private void reserve(final int amount) {
+    if (length + amount > maximum && position != 0) {
       System.arraycopy(stream, position, stream, 0, size());
       length -= position;
       position = 0;
     }
-    if (length + amount > position) {
-      maximum = (length + amount) * 11 / 10;
-      stream = Arrays.copyOf(stream, maximum);
+    if (length + amount > maximum) {
+      maximum = Math.max(length + amount, maximum * 2);
+      if (pool == null) {
+        stream = Arrays.copyOf(stream, maximum);
+      } else {
+        final ByteBuffer buffer = pool.allocateHeap(maximum);
+        if (stream != null)
+          System.arraycopy(stream, 0, buffer.array(), 0, length);
+        if (pooled != null)
+          pool.release(pooled);
+        pooled = buffer;
+        stream = buffer.array();
+        maximum = buffer.capacity();
+      }
     }
-    System.arraycopy(data, 0, stream, length, amount);
-    length += amount;
   }
 }
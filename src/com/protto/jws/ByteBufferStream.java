@@ -0,0 +1,180 @@
+package com.protto.jws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ByteBufferStream {
+  
+  private int lent;
+  private int readIndex;
+  private int writeIndex;
+  private boolean closed;
+  private ByteBuffer stream;
+  private final int chunkSize;
+  private int maxSize;
+  private final BufferPool pool;
+  private final List<ByteBuffer> retired;
+  
+  public ByteBufferStream(final BufferPool pool, final int chunkSize) {
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    retired = new ArrayList<ByteBuffer>(1);
+    stream = null;
+    closed = false;
+    lent = 0;
+    readIndex = 0;
+    writeIndex = 0;
+    maxSize = Integer.MAX_VALUE;
+  }
+  
+  // the stream grows to hold one large item but never past this size
+  public synchronized void setMaxSize(final int size) {
+    maxSize = size;
+  }
+  
+  public synchronized ByteBuffer data() {
+    return stream;
+  }
+  
+  public synchronized int capacity() {
+    return stream == null ? 0 : stream.capacity();
+  }
+  
+  public synchronized int size() {
+    return writeIndex - readIndex;
+  }
+  
+  public synchronized int pos() {
+    return readIndex;
+  }
+  
+  public synchronized void clear() {
+    closed = true;
+    readIndex = writeIndex;
+    recycle();
+  }
+  
+  public synchronized int find(final ByteArrayPattern matcher) {
+    return find(matcher, 0);
+  }
+  
+  public synchronized int find(final ByteArrayPattern matcher, final int from) {
+    if (stream == null || from >= size())
+      return -1;
+    stream.limit(writeIndex);
+    final int index = matcher.find(stream, readIndex + from, size() - from);
+    return index < 0 ? index : index + from;
+  }
+  
+  public synchronized int readFrom(final ReadableByteChannel channel) throws IOException {
+    if (closed)
+      return -1;
+    if (stream == null)
+      stream = pool.allocate(chunkSize);
+    else if (writeIndex == stream.capacity())
+      reclaim();
+    if (writeIndex == stream.capacity())
+      return 0;
+    
+    stream.limit(stream.capacity()).position(writeIndex);
+    final int amount = channel.read(stream);
+    if (amount > 0)
+      writeIndex += amount;
+    else if (readIndex == writeIndex)
+      recycle();
+    return amount;
+  }
+  
+  public synchronized ByteBuffer read(int amount) {
+    if (amount < 1 || size() < 1)
+      return null;
+    amount = Math.min(amount, size());
+    stream.limit(readIndex + amount).position(readIndex);
+    final ByteBuffer view = stream.slice();
+    readIndex += amount;
+    lent++;
+    return view;
+  }
+  
+  public synchronized byte readByte() {
+    stream.limit(writeIndex);
+    final byte value = stream.get(readIndex++);
+    recycle();
+    return value;
+  }
+  
+  public synchronized short readShort() {
+    stream.limit(writeIndex);
+    final short value = stream.getShort(readIndex);
+    readIndex += 2;
+    recycle();
+    return value;
+  }
+  
+  public synchronized long readLong() {
+    stream.limit(writeIndex);
+    final long value = stream.getLong(readIndex);
+    readIndex += 8;
+    recycle();
+    return value;
+  }
+  
+  public synchronized void read(final byte[] output) {
+    stream.limit(writeIndex).position(readIndex);
+    stream.get(output);
+    readIndex += output.length;
+    recycle();
+  }
+  
+  public synchronized void release() {
+    if (lent > 0)
+      lent--;
+    recycle();
+  }
+  
+  private void recycle() {
+    // views handed out by read() still point into the pooled buffers,
+    // so nothing goes back to the pool until every one is released
+    if (lent > 0)
+      return;
+    for (final ByteBuffer buffer : retired)
+      pool.release(buffer);
+    retired.clear();
+    if (stream != null && readIndex == writeIndex) {
+      pool.release(stream);
+      stream = null;
+      readIndex = 0;
+      writeIndex = 0;
+    }
+  }
+  
+  private void reclaim() {
+    final int remaining = size();
+    // doubled in long so large buffers cannot wrap around, capped at maxSize
+    final int capacity = readIndex != 0 ? stream.capacity()
+      : (int)Math.min((long)stream.capacity() * 2, Math.max(maxSize, stream.capacity()));
+    if (capacity == remaining)
+      return;
+    
+    if (readIndex != 0 && lent == 0) {
+      stream.limit(writeIndex).position(readIndex);
+      stream.compact();
+    } else {
+      final ByteBuffer output = pool.allocate(capacity);
+      stream.limit(writeIndex).position(readIndex);
+      output.limit(output.capacity());
+      output.put(stream);
+      if (lent == 0)
+        pool.release(stream);
+      else
+        retired.add(stream);
+      stream = output;
+    }
+    
+    readIndex = 0;
+    writeIndex = remaining;
+  }
+}
@@ -0,0 +1,173 @@
+package com.protto.jws;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class DefaultMetrics implements WebsockMetrics {
+  
+  public static class Snapshot {
+    public final long connections;
+    public final long connectionsOpened;
+    public final long connectionsClosed;
+    public final long handshakes;
+    public final long handshakeFailures;
+    public final long framesIn;
+    public final long framesOut;
+    public final long bytesIn;
+    public final long bytesOut;
+    public final long queuedWrites;
+    public final long pendingWriteBytes;
+    public final long executorBacklog;
+    public final LatencyHistogram handshakeLatency;
+    public final LatencyHistogram frameDecode;
+    public final LatencyHistogram writeFlush;
+    public final LatencyHistogram loopIteration;
+    
+    private Snapshot(final DefaultMetrics metrics, final WebsockServer server) {
+      connections = server != null ? server.getClientCount() : 0;
+      connectionsOpened = metrics.connectionsOpened.sum();
+      connectionsClosed = metrics.connectionsClosed.sum();
+      handshakes = metrics.handshakes.sum();
+      handshakeFailures = metrics.handshakeFailures.sum();
+      framesIn = metrics.framesIn.sum();
+      framesOut = metrics.framesOut.sum();
+      bytesIn = metrics.bytesIn.sum();
+      bytesOut = metrics.bytesOut.sum();
+      queuedWrites = server != null ? server.getQueuedWrites() : 0;
+      pendingWriteBytes = server != null ? server.getPendingWriteBytes() : 0;
+      executorBacklog = server != null ? server.getExecutorBacklog() : 0;
+      handshakeLatency = metrics.handshakeLatency.snapshot();
+      frameDecode = metrics.frameDecode.snapshot();
+      writeFlush = metrics.writeFlush.snapshot();
+      loopIteration = metrics.loopIteration.snapshot();
+    }
+    
+    @Override
+    public String toString() {
+      return "connections=" + connections + " opened=" + connectionsOpened + " closed=" + connectionsClosed
+        + " handshakes=" + handshakes + " failed=" + handshakeFailures
+        + " framesIn=" + framesIn + " framesOut=" + framesOut + " bytesIn=" + bytesIn + " bytesOut=" + bytesOut
+        + " queuedWrites=" + queuedWrites + " pendingWriteBytes=" + pendingWriteBytes + " executorBacklog=" + executorBacklog
+        + "\nhandshake " + handshakeLatency + "\nframe decode " + frameDecode
+        + "\nwrite flush " + writeFlush + "\nloop " + loopIteration;
+    }
+  }
+  
+  private final LongAdder connectionsOpened;
+  private final LongAdder connectionsClosed;
+  private final LongAdder handshakes;
+  private final LongAdder handshakeFailures;
+  private final LongAdder framesIn;
+  private final LongAdder framesOut;
+  private final LongAdder bytesIn;
+  private final LongAdder bytesOut;
+  private final LatencyHistogram handshakeLatency;
+  private final LatencyHistogram frameDecode;
+  private final LatencyHistogram writeFlush;
+  private final LatencyHistogram loopIteration;
+  private final boolean timed;
+  private volatile boolean jfrEvents;
+  
+  public DefaultMetrics() {
+    this(false);
+  }
+  
+  // timed adds frame decode and loop iteration histograms
+  public DefaultMetrics(final boolean timed) {
+    this.timed = timed;
+    connectionsOpened = new LongAdder();
+    connectionsClosed = new LongAdder();
+    handshakes = new LongAdder();
+    handshakeFailures = new LongAdder();
+    framesIn = new LongAdder();
+    framesOut = new LongAdder();
+    bytesIn = new LongAdder();
+    bytesOut = new LongAdder();
+    handshakeLatency = new LatencyHistogram();
+    frameDecode = new LatencyHistogram();
+    writeFlush = new LatencyHistogram();
+    loopIteration = new LatencyHistogram();
+  }
+  
+  // commits JFR events for handshakes, frame decodes and write flushes,
+  // the jdk.jfr module is only loaded once this is turned on
+  public DefaultMetrics setJfrEvents(final boolean enabled) {
+    jfrEvents = enabled;
+    return this;
+  }
+  
+  public final boolean hasJfrEvents() {
+    return jfrEvents;
+  }
+  
+  public Snapshot snapshot() {
+    return new Snapshot(this, null);
+  }
+  
+  public Snapshot snapshot(final WebsockServer server) {
+    return new Snapshot(this, server);
+  }
+  
+  @Override
+  public boolean isTimed() {
+    return timed;
+  }
+  
+  @Override
+  public void connectionOpened() {
+    connectionsOpened.increment();
+  }
+  
+  @Override
+  public void connectionClosed() {
+    connectionsClosed.increment();
+  }
+  
+  @Override
+  public void handshakeCompleted(final long nanos) {
+    handshakes.increment();
+    handshakeLatency.record(nanos);
+    if (jfrEvents)
+      JfrEvents.handshake(nanos);
+  }
+  
+  @Override
+  public void handshakeFailed() {
+    handshakeFailures.increment();
+  }
+  
+  @Override
+  public void frameReceived(final int opcode, final long size, final long nanos) {
+    framesIn.increment();
+    if (!timed)
+      return;
+    frameDecode.record(nanos);
+    if (jfrEvents)
+      JfrEvents.frameDecode(opcode, size, nanos);
+  }
+  
+  @Override
+  public void frameSent(final long size) {
+    framesOut.increment();
+  }
+  
+  @Override
+  public void bytesRead(final long count) {
+    bytesIn.add(count);
+  }
+  
+  @Override
+  public void writeFlushed(final long bytes, final long nanos) {
+    bytesOut.add(bytes);
+    if (!timed)
+      return;
+    writeFlush.record(nanos);
+    if (jfrEvents)
+      JfrEvents.writeFlush(bytes, nanos);
+  }
+  
+  @Override
+  public void loopCompleted(final int events, final long nanos) {
+    if (timed)
+      loopIteration.record(nanos);
+  }
+}
@@ -1,65 +1,161 @@
 package com.protto.jws;
 
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class HttpRequest {
   
-  private URI uri;
-  private final String method;
-  private Map<String, String> headers;
+  public static int MaxHeaderSize = 8192;
+  public static int MaxHeaders = 64;
   
-  public HttpRequest(final WebsockServer server, String httpData) throws URISyntaxException {
-    //
-    headers = new HashMap<>();
-    
-    String line = null;
-    int sep, pos = httpData.indexOf("\r\n");
+  private byte[] data;
+  private final int length;
+  private int methodEnd;
+  private int targetStart;
+  private int targetEnd;
+  private int queryStart;
+  private int headerCount;
+  // name start, name end, value start, value end of every header
+  private int[] fields;
+  
+  private String method;
+  private String path;
+  private String query;
+  
+  public HttpRequest(final byte[] data, final int length) {
+    if (length > MaxHeaderSize)
+      throw new IllegalArgumentException("Request header exceeds " + MaxHeaderSize + " bytes");
+    this.data = data;
+    this.length = length;
+    fields = new int[4 * 16];
     
-    line = httpData.substring(0, pos);
-    method = line.substring(0, line.indexOf(' '));
-    line = line.substring(line.indexOf(' ') + 1);
-    uri = new URI("http://localhost:" + server.getPort() + line.substring(0, line.indexOf(' ')));
-    httpData = httpData.substring(pos + 2);
-    pos = httpData.indexOf("\r\n");
+    // request line: method SP target SP version CRLF
+    int pos = lineEnd(0);
+    methodEnd = indexOf((byte)' ', 0, pos);
+    targetStart = methodEnd + 1;
+    targetEnd = methodEnd > 0 ? indexOf((byte)' ', targetStart, pos) : -1;
+    if (methodEnd <= 0 || targetEnd <= targetStart)
+      throw new IllegalArgumentException("Malformed request line");
+    queryStart = indexOf((byte)'?', targetStart, targetEnd);
     
-    while (pos > 0) {
-      line = httpData.substring(0, pos);
-      sep = line.indexOf(':');
-      headers.put(line.substring(0, sep), line.substring(sep + 2));
-      httpData = httpData.substring(pos + 2);
-      pos = httpData.indexOf("\r\n");
+    int start = pos + 2, end, colon;
+    while ((end = lineEnd(start)) > start) {
+      colon = indexOf((byte)':', start, end);
+      // folded continuation lines are obsolete and rejected
+      if (colon <= start || isSpace(data[start]))
+        throw new IllegalArgumentException("Malformed header line");
+      if (headerCount == MaxHeaders)
+        throw new IllegalArgumentException("More than " + MaxHeaders + " request headers");
+      
+      int valueStart = colon + 1, valueEnd = end;
+      while (valueStart < valueEnd && isSpace(data[valueStart]))
+        valueStart++;
+      while (valueEnd > valueStart && isSpace(data[valueEnd - 1]))
+        valueEnd--;
+      
+      if (fields.length < (headerCount + 1) * 4)
+        fields = Arrays.copyOf(fields, fields.length * 2);
+      fields[headerCount * 4] = start;
+      fields[headerCount * 4 + 1] = colon;
+      fields[headerCount * 4 + 2] = valueStart;
+      fields[headerCount * 4 + 3] = valueEnd;
+      headerCount++;
+      start = end + 2;
     }
-    
-    line = null;
-    httpData = null;
+  }
+  
+  private int lineEnd(final int from) {
+    for (int i = from; i + 1 < length; i++)
+      if (data[i] == '\r' && data[i + 1] == '\n')
+        return i;
+    throw new IllegalArgumentException("Unterminated request header");
+  }
+  
+  private int indexOf(final byte value, final int from, final int to) {
+    for (int i = from; i < to; i++)
+      if (data[i] == value)
+        return i;
+    return -1;
+  }
+  
+  private static boolean isSpace(final byte value) {
+    return value == ' ' || value == '\t';
+  }
+  
+  private boolean nameEquals(final int header, final String key) {
+    final int start = fields[header * 4], end = fields[header * 4 + 1];
+    if (end - start != key.length())
+      return false;
+    // header names are ASCII tokens, folding case bytewise is enough
+    for (int i = 0; i < key.length(); i++) {
+      final int a = data[start + i], b = key.charAt(i);
+      if (a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z'))
+        return false;
+    }
+    return true;
   }
   
   public void dispose() {
-    uri = null;
-    headers.clear();
-    headers = null;
+    data = null;
+    fields = null;
   }
   
   public String getPath() {
-    return uri.getPath();
+    if (path == null)
+      path = decode(targetStart, queryStart < 0 ? targetEnd : queryStart);
+    return path;
   }
   
   public String getMethod() {
+    if (method == null)
+      method = new String(data, 0, methodEnd, StandardCharsets.US_ASCII);
     return method;
   }
   
   public String getQuery() {
-    return uri.getQuery();
+    if (query == null && queryStart >= 0)
+      query = decode(queryStart + 1, targetEnd);
+    return query;
+  }
+  
+  public int getHeaderCount() {
+    return headerCount;
   }
   
   public boolean hasHeader(final String key) {
-    return headers.containsKey(key);
+    for (int i = 0; i < headerCount; i++)
+      if (nameEquals(i, key))
+        return true;
+    return false;
   }
   
   public String getHeader(final String key) {
-    return headers.get(key);
+    // repeated headers are combined into one comma separated value
+    String value = null;
+    for (int i = 0; i < headerCount; i++) {
+      if (!nameEquals(i, key))
+        continue;
+      final String part = new String(data, fields[i * 4 + 2], fields[i * 4 + 3] - fields[i * 4 + 2], StandardCharsets.ISO_8859_1);
+      value = value == null ? part : value + ", " + part;
+    }
+    return value;
+  }
+  
+  private String decode(final int start, final int end) {
+    if (indexOf((byte)'%', start, end) < 0)
+      return new String(data, start, end - start, StandardCharsets.UTF_8);
+    
+    final byte[] output = new byte[end - start];
+    int size = 0, high, low;
+    for (int i = start; i < end; i++) {
+      if (data[i] == '%' && i + 2 < end
+          && (high = Character.digit(data[i + 1], 16)) >= 0 && (low = Character.digit(data[i + 2], 16)) >= 0) {
+        output[size++] = (byte)((high << 4) | low);
+        i += 2;
+      } else {
+        output[size++] = data[i];
+      }
+    }
+    return new String(output, 0, size, StandardCharsets.UTF_8);
   }
 }
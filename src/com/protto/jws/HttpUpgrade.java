@@ -1,31 +1,46 @@
 package com.protto.jws;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 public class HttpUpgrade {
   
   private boolean error;
-  private String message;
+  private byte[] message;
   private String errorStatus;
+  private byte[] acceptKey;
+  private boolean replacedDefaults;
   private Map<String, String> headers;
   
-  private static ReentrantLock digestLock;
-  private static MessageDigest sha1Digest;
   public static Map<Integer, String> closeCodes;
-  private static final String WebsockGUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final byte[] WebsockGUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.US_ASCII);
+  private static final String[] defaultHeaders = new String[] {"Upgrade", "Connection", "Server", "Sec-WebSocket-Accept"};
+  private static final String serverName = "com.protto.jws/0.1";
+  // everything up to the accept key is the same for every handshake
+  private static final byte[] switchingPrefix = ("HTTP/1.1 101 Switching Protocols\r\n"
+    + "Upgrade: WebSocket\r\n"
+    + "Connection: Upgrade\r\n"
+    + "Server: " + serverName + "\r\n"
+    + "Sec-WebSocket-Accept: ").getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] lineEnd = new byte[] {'\r', '\n'};
+  private static final ThreadLocal<MessageDigest> sha1Digest = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  });
   
   public HttpUpgrade(final String clientKey) {
     error = false;
-    headers = new HashMap<>();
-
-    headers.put("Upgrade", "WebSocket");
-    headers.put("Connection", "Upgrade");
-    headers.put("Server", "com.protto.jws/0.1");
-    headers.put("Sec-WebSocket-Accept", generateKey(clientKey));
+    acceptKey = generateKey(clientKey);
+    if (acceptKey == null)
+      setErrorStatus("400 Bad Request");
   }
   
   public final boolean hasError() {
@@ -40,20 +55,24 @@ public class HttpUpgrade {
   
   public void dispose() {
     message = null;
-    headers.clear();
     headers = null;
     errorStatus = null;
+    acceptKey = null;
   }
   
   public HttpUpgrade setHeader(final String key, final String value) {
+    if (headers == null)
+      headers = new LinkedHashMap<>();
     headers.put(key, value);
+    for (final String name : defaultHeaders)
+      replacedDefaults |= name.equalsIgnoreCase(key);
     return this;
   }
   
   public HttpUpgrade setMessage(final String message) {
-    this.message = message;
-    headers.put("Content-Type", "text/plain");
-    headers.put("Content-Length", Integer.toString(message.length()));
+    this.message = message.getBytes(StandardCharsets.UTF_8);
+    setHeader("Content-Type", "text/plain; charset=utf-8");
+    setHeader("Content-Length", Integer.toString(this.message.length));
     return this;
   }
   
@@ -63,20 +82,18 @@ public class HttpUpgrade {
     return this;
   }
   
-  private final String generateKey(final String clientKey) {
-    if (clientKey == null) return null;
-    digestLock.lock();
-    sha1Digest.reset();
-    sha1Digest.update((clientKey + WebsockGUID).getBytes());
-    final String key = new String(Base64.getEncoder().encode(sha1Digest.digest()));
-    digestLock.unlock();
-    return key;
+  private static byte[] generateKey(final String clientKey) {
+    if (clientKey == null)
+      return null;
+    // one digest per thread, handshakes on different threads never contend
+    final MessageDigest digest = sha1Digest.get();
+    digest.reset();
+    digest.update(clientKey.getBytes(StandardCharsets.US_ASCII));
+    digest.update(WebsockGUID);
+    return Base64.getEncoder().encode(digest.digest());
   }
   
   public static void Initialize() throws Exception {
-    sha1Digest = MessageDigest.getInstance("SHA-1");
-    digestLock = new ReentrantLock();
-    
     closeCodes = new HashMap<>();
     closeCodes.put(1000, "Ok");
     closeCodes.put(1001, "Going Away");
@@ -89,6 +106,42 @@ public class HttpUpgrade {
     closeCodes.put(1011, "UnexpectedError");
   }
   
+  public byte[] toBytes() {
+    if (errorStatus != null || replacedDefaults || acceptKey == null)
+      return toString().getBytes(StandardCharsets.ISO_8859_1);
+    
+    // the precomputed prefix, the accept key, then whatever the user added
+    byte[][] extra = null;
+    int size = switchingPrefix.length + acceptKey.length + lineEnd.length * 2;
+    if (headers != null) {
+      extra = new byte[headers.size()][];
+      int i = 0;
+      for (final Map.Entry<String, String> entry : headers.entrySet()) {
+        extra[i] = (entry.getKey() + ": " + entry.getValue() + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        size += extra[i++].length;
+      }
+    }
+    if (message != null)
+      size += message.length;
+    
+    final byte[] output = new byte[size];
+    int pos = put(output, 0, switchingPrefix);
+    pos = put(output, pos, acceptKey);
+    pos = put(output, pos, lineEnd);
+    if (extra != null)
+      for (final byte[] line : extra)
+        pos = put(output, pos, line);
+    pos = put(output, pos, lineEnd);
+    if (message != null)
+      put(output, pos, message);
+    return output;
+  }
+  
+  private static int put(final byte[] output, final int pos, final byte[] data) {
+    System.arraycopy(data, 0, output, pos, data.length);
+    return pos + data.length;
+  }
+  
   @Override
   public String toString() {
     final StringBuilder output = new StringBuilder();
@@ -98,12 +151,30 @@ public class HttpUpgrade {
     else
       output.append("101 Switching Protocols");
     output.append("\r\n");
-    for (final Map.Entry<String, String> entry : headers.entrySet())
+    
+    // a refused upgrade is a plain http response
+    final Map<String, String> all = new LinkedHashMap<>();
+    if (errorStatus == null) {
+      all.put("Upgrade", "WebSocket");
+      all.put("Connection", "Upgrade");
+    } else {
+      all.put("Connection", "close");
+    }
+    all.put("Server", serverName);
+    if (errorStatus == null && acceptKey != null)
+      all.put("Sec-WebSocket-Accept", new String(acceptKey, StandardCharsets.US_ASCII));
+    if (headers != null)
+      for (final Map.Entry<String, String> entry : headers.entrySet()) {
+        all.keySet().removeIf(key -> key.equalsIgnoreCase(entry.getKey()));
+        all.put(entry.getKey(), entry.getValue());
+      }
+    
+    for (final Map.Entry<String, String> entry : all.entrySet())
       output.append(entry.getKey()).append(": ")
       .append(entry.getValue()).append("\r\n");
     output.append("\r\n");
     if (message != null)
-      output.append(message);
+      output.append(new String(message, StandardCharsets.ISO_8859_1));
     return output.toString();
   }
 }
@@ -0,0 +1,74 @@
+package com.protto.jws;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// kept apart from DefaultMetrics so jdk.jfr is not needed unless events are on
+final class JfrEvents {
+  
+  @Name("com.protto.jws.Handshake")
+  @Label("WebSocket Handshake")
+  @Category("WebSocket")
+  static class HandshakeEvent extends Event {
+    @Label("Elapsed")
+    @Timespan
+    long elapsed;
+  }
+  
+  @Name("com.protto.jws.FrameDecode")
+  @Label("WebSocket Frame Decode")
+  @Category("WebSocket")
+  static class FrameDecodeEvent extends Event {
+    @Label("Opcode")
+    int opcode;
+    @Label("Size")
+    long size;
+    @Label("Elapsed")
+    @Timespan
+    long elapsed;
+  }
+  
+  @Name("com.protto.jws.WriteFlush")
+  @Label("WebSocket Write Flush")
+  @Category("WebSocket")
+  static class WriteFlushEvent extends Event {
+    @Label("Bytes")
+    long bytes;
+    @Label("Elapsed")
+    @Timespan
+    long elapsed;
+  }
+  
+  private JfrEvents() {
+  }
+  
+  static void handshake(final long nanos) {
+    final HandshakeEvent event = new HandshakeEvent();
+    if (!event.isEnabled())
+      return;
+    event.elapsed = nanos;
+    event.commit();
+  }
+  
+  static void frameDecode(final int opcode, final long size, final long nanos) {
+    final FrameDecodeEvent event = new FrameDecodeEvent();
+    if (!event.isEnabled())
+      return;
+    event.opcode = opcode;
+    event.size = size;
+    event.elapsed = nanos;
+    event.commit();
+  }
+  
+  static void writeFlush(final long bytes, final long nanos) {
+    final WriteFlushEvent event = new WriteFlushEvent();
+    if (!event.isEnabled())
+      return;
+    event.bytes = bytes;
+    event.elapsed = nanos;
+    event.commit();
+  }
+}
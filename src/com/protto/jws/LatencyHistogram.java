@@ -0,0 +1,111 @@
+package com.protto.jws;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// lock free log-linear histogram of nanosecond values, four buckets per
+// power of two keep every bucket within 25% of the values it counts
+public class LatencyHistogram {
+  
+  private static final int SubBits = 2;
+  private static final int SubCount = 1 << SubBits;
+  // values are clamped to 2^40 ns, a little over 18 minutes
+  private static final int MaxBits = 40;
+  private static final long MaxValue = (1L << MaxBits) - 1;
+  private static final int BucketCount = (MaxBits - SubBits + 1) * SubCount;
+  
+  private final AtomicLongArray buckets;
+  // striped so reactors recording at the same time do not contend
+  private final LongAdder count;
+  private final LongAdder sum;
+  private final AtomicLong max;
+  
+  public LatencyHistogram() {
+    buckets = new AtomicLongArray(BucketCount);
+    count = new LongAdder();
+    sum = new LongAdder();
+    max = new AtomicLong();
+  }
+  
+  public void record(final long nanos) {
+    final long value = Math.min(Math.max(nanos, 0), MaxValue);
+    buckets.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value));
+  }
+  
+  private static int index(final long value) {
+    if (value < SubCount)
+      return (int)value;
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int sub = (int)(value >>> (exponent - SubBits)) & (SubCount - 1);
+    return (exponent - SubBits + 1) * SubCount + sub;
+  }
+  
+  // largest value that lands in the bucket
+  private static long upperBound(final int index) {
+    if (index < SubCount)
+      return index;
+    final int exponent = index / SubCount + SubBits - 1;
+    final long sub = index & (SubCount - 1);
+    return ((SubCount + sub + 1) << (exponent - SubBits)) - 1;
+  }
+  
+  public long getCount() {
+    return count.sum();
+  }
+  
+  public long getMax() {
+    return max.get();
+  }
+  
+  public long getMean() {
+    final long total = count.sum();
+    return total == 0 ? 0 : sum.sum() / total;
+  }
+  
+  // upper bound of the bucket holding the given fraction of values, 0 <= p <= 1
+  public long getPercentile(final double p) {
+    final long total = count.sum();
+    if (total == 0)
+      return 0;
+    final long rank = Math.max(1, (long)Math.ceil(total * Math.min(Math.max(p, 0), 1)));
+    long seen = 0;
+    for (int i = 0; i < BucketCount; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank)
+        return Math.min(upperBound(i), max.get());
+    }
+    return max.get();
+  }
+  
+  public void clear() {
+    for (int i = 0; i < BucketCount; i++)
+      buckets.set(i, 0);
+    count.reset();
+    sum.reset();
+    max.set(0);
+  }
+  
+  // a copy that no longer changes, taken while recording goes on
+  public LatencyHistogram snapshot() {
+    final LatencyHistogram copy = new LatencyHistogram();
+    for (int i = 0; i < BucketCount; i++)
+      copy.buckets.set(i, buckets.get(i));
+    copy.count.add(count.sum());
+    copy.sum.add(sum.sum());
+    copy.max.set(max.get());
+    return copy;
+  }
+  
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%dus p50=%dus p99=%dus max=%dus", getCount(),
+      TimeUnit.NANOSECONDS.toMicros(getMean()), TimeUnit.NANOSECONDS.toMicros(getPercentile(0.5)),
+      TimeUnit.NANOSECONDS.toMicros(getPercentile(0.99)), TimeUnit.NANOSECONDS.toMicros(getMax()));
+  }
+}
@@ -0,0 +1,296 @@
+package com.protto.jws;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class PerMessageDeflate {
+  
+  public class Session {
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean resetContext;
+    private final String response;
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    
+    private Session(final boolean serverNoContextTakeover, final boolean clientNoContextTakeover, final String response) {
+      this.serverNoContextTakeover = serverNoContextTakeover;
+      this.clientNoContextTakeover = clientNoContextTakeover;
+      this.response = response;
+    }
+    
+    public final boolean isServerNoContextTakeover() {
+      return serverNoContextTakeover;
+    }
+    
+    public final boolean isClientNoContextTakeover() {
+      return clientNoContextTakeover;
+    }
+    
+    public final PerMessageDeflate getExtension() {
+      return PerMessageDeflate.this;
+    }
+    
+    public synchronized ByteBuffer compress(final BufferPool pool, final ByteBuffer data, final int headroom) {
+      if (serverNoContextTakeover)
+        return PerMessageDeflate.this.compress(pool, data, headroom);
+      if (deflater == null)
+        deflater = new Deflater(compressionLevel, true);
+      if (resetContext)
+        deflater.reset();
+      resetContext = false;
+      return deflate(deflater, pool, data, headroom);
+    }
+    
+    public synchronized void resetContext() {
+      resetContext = true;
+    }
+    
+    public byte[] decompress(final ByteBuffer data) throws DataFormatException {
+      return decompress(data, MaxArraySize);
+    }
+    
+    public byte[] decompress(final ByteBuffer data, final int maxSize) throws DataFormatException {
+      if (clientNoContextTakeover)
+        return PerMessageDeflate.this.decompress(data, maxSize);
+      if (inflater == null)
+        inflater = new Inflater(true);
+      return inflate(inflater, data, maxSize);
+    }
+    
+    public synchronized void dispose() {
+      if (deflater != null)
+        deflater.end();
+      if (inflater != null)
+        inflater.end();
+      deflater = null;
+      inflater = null;
+    }
+    
+    @Override
+    public String toString() {
+      return response;
+    }
+  }
+  
+  public static final String Name = "permessage-deflate";
+  private static final int MaxArraySize = Integer.MAX_VALUE - 8;
+  private static final byte[] flushTail = new byte[] {0x00, 0x00, (byte)0xff, (byte)0xff};
+  
+  private int minSize;
+  private int compressionLevel;
+  private int clientMaxWindowBits;
+  private boolean serverNoContextTakeover;
+  private boolean clientNoContextTakeover;
+  private final Queue<Deflater> deflaters;
+  private final Queue<Inflater> inflaters;
+  
+  public PerMessageDeflate() {
+    minSize = 256;
+    compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    clientMaxWindowBits = 15;
+    serverNoContextTakeover = true;
+    clientNoContextTakeover = false;
+    deflaters = new ConcurrentLinkedQueue<Deflater>();
+    inflaters = new ConcurrentLinkedQueue<Inflater>();
+  }
+  
+  public final int getMinSize() {
+    return minSize;
+  }
+  
+  public PerMessageDeflate setMinSize(final int size) {
+    minSize = size;
+    return this;
+  }
+  
+  public PerMessageDeflate setCompressionLevel(final int level) {
+    compressionLevel = level;
+    return this;
+  }
+  
+  public PerMessageDeflate setClientMaxWindowBits(final int bits) {
+    if (bits < 8 || bits > 15)
+      throw new IllegalArgumentException("Window bits must be between 8 and 15");
+    clientMaxWindowBits = bits;
+    return this;
+  }
+  
+  public PerMessageDeflate setServerNoContextTakeover(final boolean enabled) {
+    serverNoContextTakeover = enabled;
+    return this;
+  }
+  
+  public PerMessageDeflate setClientNoContextTakeover(final boolean enabled) {
+    clientNoContextTakeover = enabled;
+    return this;
+  }
+  
+  public Session negotiate(final String offers) {
+    if (offers == null)
+      return null;
+    
+    for (final String offer : offers.split(",")) {
+      final String[] params = offer.split(";");
+      if (!params[0].trim().equalsIgnoreCase(Name))
+        continue;
+      
+      boolean valid = true;
+      boolean serverWindow = false;
+      boolean serverNoContextOffered = false;
+      boolean clientNoContextOffered = false;
+      // 0 while not offered, a bare parameter allows the full window
+      int clientWindowBits = 0;
+      
+      for (int i = 1; i < params.length && valid; i++) {
+        final int sep = params[i].indexOf('=');
+        final String name = (sep < 0 ? params[i] : params[i].substring(0, sep)).trim().toLowerCase();
+        final String value = sep < 0 ? null : params[i].substring(sep + 1).trim().replace("\"", "");
+        
+        // an offer naming the same parameter twice is invalid (RFC 7692 7.1)
+        switch (name) {
+          case "server_no_context_takeover":
+            valid = !serverNoContextOffered && value == null;
+            serverNoContextOffered = true;
+            break;
+          case "client_no_context_takeover":
+            valid = !clientNoContextOffered && value == null;
+            clientNoContextOffered = true;
+            break;
+          case "client_max_window_bits":
+            valid = clientWindowBits == 0 && (value == null || windowBits(value) > 0);
+            clientWindowBits = value == null ? 15 : windowBits(value);
+            break;
+          case "server_max_window_bits":
+            // java.util.zip always compresses with a 32 KiB window
+            valid = !serverWindow && value != null && value.equals("15");
+            serverWindow = true;
+            break;
+          default:
+            valid = false;
+            break;
+        }
+      }
+      
+      if (!valid)
+        continue;
+      
+      final boolean serverNoContext = serverNoContextTakeover || serverNoContextOffered;
+      final boolean clientNoContext = clientNoContextTakeover || clientNoContextOffered;
+      final int clientBits = Math.min(clientMaxWindowBits, clientWindowBits);
+      final StringBuilder response = new StringBuilder(Name);
+      if (serverNoContext)
+        response.append("; server_no_context_takeover");
+      if (clientNoContext)
+        response.append("; client_no_context_takeover");
+      // an accepted server_max_window_bits has to be echoed back
+      if (serverWindow)
+        response.append("; server_max_window_bits=15");
+      if (clientBits > 0 && clientBits < 15)
+        response.append("; client_max_window_bits=").append(clientBits);
+      return new Session(serverNoContext, clientNoContext, response.toString());
+    }
+    
+    return null;
+  }
+  
+  // 8 to 15 without leading zeros, -1 for anything else
+  private static int windowBits(final String value) {
+    if (value.length() == 0 || value.length() > 2 || value.charAt(0) == '0')
+      return -1;
+    int bits = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      bits = bits * 10 + c - '0';
+    }
+    return bits >= 8 && bits <= 15 ? bits : -1;
+  }
+  
+  public ByteBuffer compress(final BufferPool pool, final ByteBuffer data, final int headroom) {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null)
+      deflater = new Deflater(compressionLevel, true);
+    try {
+      return deflate(deflater, pool, data, headroom);
+    } finally {
+      deflater.reset();
+      deflaters.add(deflater);
+    }
+  }
+  
+  public byte[] decompress(final ByteBuffer data) throws DataFormatException {
+    return decompress(data, MaxArraySize);
+  }
+  
+  public byte[] decompress(final ByteBuffer data, final int maxSize) throws DataFormatException {
+    Inflater inflater = inflaters.poll();
+    if (inflater == null)
+      inflater = new Inflater(true);
+    try {
+      return inflate(inflater, data, maxSize);
+    } finally {
+      inflater.reset();
+      inflaters.add(inflater);
+    }
+  }
+  
+  private static ByteBuffer deflate(final Deflater deflater, final BufferPool pool, final ByteBuffer data, final int headroom) {
+    ByteBuffer output = pool.allocate(headroom + data.remaining() + 64);
+    output.limit(output.capacity()).position(headroom);
+    deflater.setInput(data.duplicate());
+    
+    while (true) {
+      deflater.deflate(output, Deflater.SYNC_FLUSH);
+      if (output.hasRemaining())
+        break;
+      final ByteBuffer larger = pool.allocate(output.capacity() * 2);
+      output.flip();
+      larger.limit(larger.capacity());
+      larger.put(output);
+      pool.release(output);
+      output = larger;
+    }
+    
+    // the flushed block ends with 00 00 ff ff, which is never sent
+    output.flip().position(headroom);
+    if (output.remaining() >= 4 && output.getInt(output.limit() - 4) == 0x0000ffff)
+      output.limit(output.limit() - 4);
+    return output;
+  }
+  
+  private static byte[] inflate(final Inflater inflater, final ByteBuffer data, final int maxSize) throws DataFormatException {
+    int length = 0;
+    // one byte past the limit is enough to tell that it was exceeded
+    final int capacity = (int)Math.min((long)maxSize + 1, MaxArraySize);
+    byte[] output = new byte[(int)Math.min(Math.max(64L, data.remaining() * 4L), capacity)];
+    
+    for (int pass = 0; pass < 2; pass++) {
+      if (pass == 0)
+        inflater.setInput(data.duplicate());
+      else
+        inflater.setInput(flushTail);
+      
+      int amount;
+      do {
+        if (length > maxSize)
+          throw new BufferOverflowException();
+        if (length == output.length)
+          output = Arrays.copyOf(output, (int)Math.min(output.length * 2L, capacity));
+        amount = inflater.inflate(output, length, output.length - length);
+        length += amount;
+      } while (amount > 0 || (!inflater.needsInput() && !inflater.finished()));
+    }
+    if (length > maxSize)
+      throw new BufferOverflowException();
+    
+    return length == output.length ? output : Arrays.copyOf(output, length);
+  }
+}
@@ -0,0 +1,56 @@
+package com.protto.jws;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SerialExecutor implements Executor {
+  
+  private final Executor target;
+  private final Queue<Runnable> tasks;
+  private final AtomicBoolean scheduled;
+  public static int MaxBatch = 32;
+  
+  public SerialExecutor(final Executor target) {
+    this.target = target;
+    tasks = new ConcurrentLinkedQueue<Runnable>();
+    scheduled = new AtomicBoolean();
+  }
+  
+  public int pending() {
+    return tasks.size();
+  }
+  
+  @Override
+  public void execute(final Runnable task) {
+    tasks.add(task);
+    schedule();
+  }
+  
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true))
+      target.execute(this::drain);
+  }
+  
+  private void drain() {
+    int batch = 0;
+    Runnable task;
+    try {
+      // run a bounded batch per turn so one busy connection cannot
+      // monopolize a pool thread while others are waiting
+      while (batch++ < MaxBatch && (task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+    } finally {
+      scheduled.set(false);
+      // a task may have been queued after the last poll
+      if (!tasks.isEmpty())
+        schedule();
+    }
+  }
+}
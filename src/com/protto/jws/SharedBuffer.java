@@ -0,0 +1,45 @@
+package com.protto.jws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedBuffer {
+  
+  private final ByteBuffer buffer;
+  private final ByteBuffer backing;
+  private final BufferPool pool;
+  private final AtomicInteger references;
+  
+  public SharedBuffer(final BufferPool pool, final ByteBuffer buffer) {
+    this.pool = pool;
+    this.buffer = buffer.asReadOnlyBuffer();
+    this.backing = buffer;
+    this.references = new AtomicInteger(1);
+  }
+  
+  public int size() {
+    return buffer.remaining();
+  }
+  
+  public int references() {
+    return references.get();
+  }
+  
+  public ByteBuffer view() {
+    return buffer.duplicate();
+  }
+  
+  public SharedBuffer retain() {
+    if (references.getAndIncrement() < 1)
+      throw new IllegalStateException("Shared buffer already released");
+    return this;
+  }
+  
+  public void release() {
+    final int remaining = references.decrementAndGet();
+    if (remaining == 0)
+      pool.release(backing);
+    else if (remaining < 0)
+      throw new IllegalStateException("Shared buffer released too many times");
+  }
+}
@@ -3,57 +3,158 @@ package com.protto.jws;
 import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 public class SocketClient {
   
   private class ReadEvent {
     public final Object goal;
-    public final Consumer<byte[]> callback;
+    public final Consumer<ByteBuffer> callback;
     
-    public ReadEvent(final Object goal, final Consumer<byte[]> callback) {
+    public ReadEvent(final Object goal, final Consumer<ByteBuffer> callback) {
       this.goal = goal;
       this.callback = callback;
     }
   }
   
   private class WriteEvent {
-    public final byte[] data;
+    public final ByteBuffer header;
+    public final ByteBuffer data;
+    public final boolean pooled;
+    public final SharedBuffer shared;
+    // limited events are subject to the overflow policy, only droppable
+    // ones may be discarded by it
+    public final boolean limited;
+    public final boolean droppable;
     public final Runnable callback;
-    public WriteEvent(final byte[] data, final Runnable callback) {
+    public final FileChannel file;
+    public long filePosition;
+    public long fileRemaining;
+    public final long size;
+    public WriteEvent(final ByteBuffer header, final ByteBuffer data, final boolean pooled, final SharedBuffer shared,
+        final boolean limited, final boolean droppable, final Runnable callback) {
+      this(header, data, pooled, shared, limited, droppable, callback, null, 0, 0);
+    }
+    public WriteEvent(final ByteBuffer header, final ByteBuffer data, final boolean pooled, final SharedBuffer shared,
+        final boolean limited, final boolean droppable, final Runnable callback, final FileChannel file, final long position, final long length) {
+      this.header = header;
       this.data = data;
+      this.pooled = pooled;
+      this.shared = shared;
+      this.limited = limited;
+      this.droppable = droppable;
       this.callback = callback;
+      this.file = file;
+      filePosition = position;
+      fileRemaining = length;
+      size = remaining();
+    }
+    // file regions stay in the page cache, only buffered bytes count
+    // against the watermarks
+    public long remaining() {
+      return (header != null ? header.remaining() : 0) + data.remaining();
     }
   }
   
-  private SelectionKey key;
+  private final long id;
+  private volatile SelectionKey key;
   private WebsockServer server;
-  private Runnable closeCallback;
+  private volatile Runnable closeCallback;
+  private final BufferPool pool;
+  private final SocketReactor reactor;
   private final SocketChannel channel;
+  private final Executor executor;
+  private volatile Consumer<ByteBufferStream> reader;
+  private volatile Consumer<Boolean> writabilityCallback;
+  private volatile Consumer<Integer> overflowCallback;
+  private volatile Runnable readIdleCallback;
+  
+  private final long lowWatermark;
+  private final long highWatermark;
+  private final WebsockServer.WriteOverflow overflow;
+  private final AtomicLong pendingBytes;
+  private final AtomicBoolean writable;
+  private final AtomicBoolean flushScheduled;
+  private final Runnable flush;
+  private final Runnable updateRead;
   
+  private final WebsockMetrics metrics;
+  private final boolean timed;
+  private final long readIdleTimeout;
+  private final long writeIdleTimeout;
+  private final List<TimerWheel.Timeout> timeouts;
+  private volatile long lastRead;
+  private volatile long lastWrite;
+  private boolean notifiedWritable;
   
   private int dataRead;
-  private int dataWritten;
-  private ByteBuffer readBuffer;
   private volatile boolean connected;
+  // paused by the application and by the connection's own backlog, reading
+  // only resumes once both are cleared
+  private volatile boolean readPaused;
+  private volatile boolean backlogPaused;
   private final Deque<ReadEvent> readQueue;
   private final Deque<WriteEvent> writeQueue;
-  private final ByteArrayStream readStream;
+  private final ByteBufferStream readStream;
+  private final int readLimit;
   
-  public SocketClient(final WebsockServer server, final SocketChannel channel) throws SocketException {
+  public SocketClient(final WebsockServer server, final SocketReactor reactor, final SocketChannel channel, final long id) throws SocketException {
+    this.id = id;
     this.server = server;
+    this.reactor = reactor;
     this.channel = channel;
-
+    pool = server.getBufferPool();
+    // handlers of one connection run in order, one at a time
+    if (server.getExecutionMode() == WebsockServer.ExecutionMode.VirtualThreads)
+      executor = new SerialExecutor(server.getVirtualThreadPool());
+    else
+      executor = new SerialExecutor(server.getThreadPool());
+    lowWatermark = server.getWriteLowWatermark();
+    highWatermark = server.getWriteHighWatermark();
+    overflow = server.getWriteOverflow();
+    pendingBytes = new AtomicLong();
+    writable = new AtomicBoolean(true);
+    notifiedWritable = true;
+    flushScheduled = new AtomicBoolean();
+    flush = () -> {
+      flushScheduled.set(false);
+      try {
+        performWrite();
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      }
+    };
+    updateRead = () -> interest(SelectionKey.OP_READ, readEnabled());
+    metrics = server.getMetrics();
+    timed = metrics.isTimed();
+    readIdleTimeout = server.getReadIdleTimeout();
+    writeIdleTimeout = server.getWriteIdleTimeout();
+    timeouts = new ArrayList<TimerWheel.Timeout>(2);
+    
     connected = true;
-    readStream = new ByteArrayStream();
     readQueue = new LinkedBlockingDeque<ReadEvent>();
     writeQueue = new LinkedBlockingDeque<WriteEvent>();
-    readBuffer = ByteBuffer.allocate(channel.socket().getReceiveBufferSize());
+    readStream = new ByteBufferStream(pool, channel.socket().getReceiveBufferSize());
+    // room for one frame of the largest allowed size and its header
+    readLimit = server.getMaxFrameSize() + 14;
+    readStream.setMaxSize(readLimit);
+  }
+  
+  public final long getId() {
+    return id;
   }
   
   public final SelectionKey getKey() {
@@ -64,30 +165,201 @@ public class SocketClient {
     return server;
   }
   
+  public final SocketReactor getReactor() {
+    return reactor;
+  }
+  
+  public final SocketChannel getChannel() {
+    return channel;
+  }
+  
+  public final BufferPool getBufferPool() {
+    return pool;
+  }
+  
   public final boolean isConnected() {
     return connected;
   }
   
-  public synchronized void setKey(final SelectionKey key) {
+  public final boolean isReadPaused() {
+    return readPaused;
+  }
+  
+  public final boolean isWritable() {
+    return writable.get();
+  }
+  
+  public final long getPendingBytes() {
+    return pendingBytes.get();
+  }
+  
+  public final int getQueuedWrites() {
+    return writeQueue.size();
+  }
+  
+  public final int getPendingTasks() {
+    return executor instanceof SerialExecutor ? ((SerialExecutor)executor).pending() : 0;
+  }
+  
+  // interest ops are only changed on the reactor thread, other threads queue a task
+  public void setKey(final SelectionKey key) {
     this.key = key;
+    interest(SelectionKey.OP_READ, readEnabled());
+    interest(SelectionKey.OP_WRITE, !writeQueue.isEmpty());
+    
+    lastRead = lastWrite = System.nanoTime();
+    if (readIdleTimeout > 0 || writeIdleTimeout > 0)
+      checkIdle();
   }
   
-  private synchronized void addEvent(final int event) {
-    if (key != null && ((key.interestOps() & event) != event))
-      key.interestOps(key.interestOps() | event);
-    server.getSelector().wakeup();
+  public void schedule(final long delayMillis, final Runnable task) {
+    if (reactor.inReactorThread())
+      addTimeout(delayMillis, task);
+    else
+      reactor.execute(() -> addTimeout(delayMillis, task));
+  }
+  
+  private void addTimeout(final long delayMillis, final Runnable task) {
+    // timers live on the reactor's wheel and are cancelled with the connection
+    if (!connected)
+      return;
+    timeouts.removeIf(timeout -> !timeout.isPending());
+    timeouts.add(reactor.getTimers().schedule(delayMillis, task));
   }
   
-  private synchronized void removeEvent(final int event) {
-    if (key != null && ((key.interestOps() & event) == event))
-      key.interestOps(key.interestOps() & ~event);
-    server.getSelector().wakeup();
+  private void checkIdle() {
+    if (!connected)
+      return;
+    final long now = System.nanoTime();
+    long next = Long.MAX_VALUE;
+    
+    if (readIdleTimeout > 0) {
+      final long idle = TimeUnit.NANOSECONDS.toMillis(now - lastRead);
+      if (idle >= readIdleTimeout) {
+        readIdle();
+        return;
+      }
+      next = readIdleTimeout - idle;
+    }
+    
+    // a queue that makes no progress means the peer stopped reading
+    if (writeIdleTimeout > 0) {
+      final long idle = writeQueue.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(now - lastWrite);
+      if (idle >= writeIdleTimeout) {
+        try {
+          close();
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+        return;
+      }
+      next = Math.min(next, writeIdleTimeout - idle);
+    }
+    addTimeout(next, this::checkIdle);
   }
   
-  private void readAndSpawn(final int amount, final Consumer<byte[]> callback) {
-    final byte[] data = readStream.read(amount);
-    server.getThreadPool().submit(() -> {
-      callback.accept(data);
+  private void readIdle() {
+    final Runnable callback = readIdleCallback;
+    try {
+      if (callback != null)
+        callback.run();
+      else
+        close();
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+  
+  private void interest(final int event, final boolean enabled) {
+    if (key == null || !key.isValid())
+      return;
+    final int ops = key.interestOps();
+    final int next = enabled ? ops | event : ops & ~event;
+    if (next != ops)
+      key.interestOps(next);
+  }
+  
+  public void pauseReading() {
+    // frames already buffered are still decoded, the peer backs off once
+    // our receive window fills up
+    readPaused = true;
+    reactor.execute(updateRead);
+  }
+  
+  public void resumeReading() {
+    readPaused = false;
+    reactor.execute(updateRead);
+  }
+  
+  // used by the websocket layer while its handlers lag behind, independent
+  // of the application's pauseReading
+  void setBacklogPaused(final boolean paused) {
+    backlogPaused = paused;
+    reactor.execute(paused ? updateRead : this::refreshRead);
+  }
+  
+  private void refreshRead() {
+    updateRead.run();
+    // bytes buffered while the reader was missing or held back are handed over now
+    final Consumer<ByteBufferStream> current = reader;
+    if (current != null && connected && !backlogPaused && readStream.size() > 0)
+      current.accept(readStream);
+  }
+  
+  public final boolean isBacklogPaused() {
+    return backlogPaused;
+  }
+  
+  private boolean readEnabled() {
+    // nothing drains the stream without a reader, and a full stream takes no more
+    return !readPaused && !backlogPaused && (reader != null || !readQueue.isEmpty())
+      && readStream.size() < readLimit;
+  }
+  
+  private void scheduleFlush() {
+    // one pending flush per connection no matter how many frames are queued
+    if (flushScheduled.compareAndSet(false, true))
+      reactor.execute(flush);
+  }
+  
+  public SocketClient onClose(final Runnable callback) {
+    closeCallback = callback;
+    return this;
+  }
+  
+  public SocketClient onWritabilityChanged(final Consumer<Boolean> callback) {
+    writabilityCallback = callback;
+    return this;
+  }
+  
+  public SocketClient onReadIdle(final Runnable callback) {
+    readIdleCallback = callback;
+    return this;
+  }
+  
+  public SocketClient onOverflow(final Consumer<Integer> callback) {
+    overflowCallback = callback;
+    return this;
+  }
+  
+  public void dispatch(final Runnable task) {
+    executor.execute(task);
+  }
+  
+  public void setReader(final Consumer<ByteBufferStream> reader) {
+    this.reader = reader;
+    // reading stops while no reader is set, a peer cannot fill memory during a slow upgrade
+    reactor.execute(this::refreshRead);
+  }
+  
+  private void readAndSpawn(final int amount, final Consumer<ByteBuffer> callback) {
+    final ByteBuffer data = readStream.read(amount);
+    executor.execute(() -> {
+      try {
+        callback.accept(data);
+      } finally {
+        readStream.release();
+      }
     });
   }
   
@@ -96,106 +368,342 @@ public class SocketClient {
   }
   
   public void write(final byte[] data, final Runnable callback) {
+    write(ByteBuffer.wrap(data), false, callback);
+  }
+  
+  public void write(final ByteBuffer data, final boolean pooled, final Runnable callback) {
+    if (!connected) {
+      if (pooled)
+        pool.release(data);
+      return;
+    }
+    enqueue(new WriteEvent(null, data, pooled, null, false, false, callback));
+  }
+  
+  public void write(final SharedBuffer shared, final Runnable callback) {
     if (!connected)
       return;
-    writeQueue.add(new WriteEvent(data, callback));
-    addEvent(SelectionKey.OP_WRITE);
+    enqueue(new WriteEvent(null, shared.retain().view(), false, shared, true, true, callback));
+  }
+  
+  public void writeFrame(final ByteBuffer header, final ByteBuffer data, final boolean pooled, final Runnable callback) {
+    writeFrame(header, data, pooled, true, callback);
+  }
+  
+  // frames that later frames depend on are not droppable, they still count
+  // against the watermarks and may close the connection
+  public void writeFrame(final ByteBuffer header, final ByteBuffer data, final boolean pooled, final boolean droppable, final Runnable callback) {
+    if (!connected) {
+      if (header != null)
+        pool.release(header);
+      if (pooled)
+        pool.release(data);
+      return;
+    }
+    enqueue(new WriteEvent(header, data, pooled, null, true, droppable, callback));
+  }
+  
+  public void writeFile(final ByteBuffer header, final FileChannel file, final long position, final long length, final Runnable callback) {
+    // the file region follows the header straight from the page cache, it is
+    // never dropped so the callback always runs unless the connection closes
+    final WriteEvent event = new WriteEvent(null, header, true, null, true, false, callback, file, position, length);
+    if (!connected) {
+      release(event);
+      return;
+    }
+    enqueue(event);
   }
   
-  public void read(final Consumer<byte[]> callback) {
+  private void enqueue(final WriteEvent event) {
+    // only data frames are subject to the overflow policy, control
+    // frames and the handshake always go out
+    if (event.limited && pendingBytes.get() + event.size > highWatermark) {
+      switch (overflow) {
+      case DropNew:
+        if (!event.droppable)
+          break;
+        release(event);
+        return;
+      case DropOldest:
+        reactor.execute(this::dropOldest);
+        break;
+      case Close:
+        release(event);
+        final Consumer<Integer> callback = overflowCallback;
+        if (callback != null)
+          callback.accept(event.size > highWatermark ? 1009 : 1008);
+        return;
+      default:
+        break;
+      }
+    }
+    
+    writeQueue.add(event);
+    final long pending = pendingBytes.addAndGet(event.size);
+    if (pending > highWatermark)
+      setWritable(false);
+    // lost a race with close(), make sure the event is still released
+    if (!connected) {
+      reactor.execute(this::releaseWrites);
+      return;
+    }
+    
+    // a queue that was not empty is already being flushed or waits for OP_WRITE
+    if (pending != event.size)
+      return;
+    if (writeIdleTimeout > 0)
+      lastWrite = System.nanoTime();
+    if (reactor.inReactorThread()) {
+      try {
+        performWrite();
+      } catch (IOException ex) {
+        ex.printStackTrace();
+      }
+    } else {
+      scheduleFlush();
+    }
+  }
+  
+  private void dropOldest() {
+    // frames already partially on the wire have to be finished
+    final Iterator<WriteEvent> iterator = writeQueue.iterator();
+    while (pendingBytes.get() > highWatermark && iterator.hasNext()) {
+      final WriteEvent event = iterator.next();
+      if (event.droppable && event.remaining() == event.size) {
+        iterator.remove();
+        pendingBytes.addAndGet(-event.size);
+        release(event);
+      }
+    }
+  }
+  
+  private void setWritable(final boolean value) {
+    if (writable.compareAndSet(!value, value) && writabilityCallback != null)
+      executor.execute(this::notifyWritability);
+  }
+  
+  private void notifyWritability() {
+    // flips from different threads may be queued out of order,
+    // report the current state and only when it changed
+    final boolean value = writable.get();
+    final Consumer<Boolean> callback = writabilityCallback;
+    if (value == notifiedWritable || callback == null)
+      return;
+    notifiedWritable = value;
+    callback.accept(value);
+  }
+  
+  public void read(final Consumer<ByteBuffer> callback) {
     read(Math.max(readStream.size(), 1), callback);
   }
   
-  public void read(final int amount, final Consumer<byte[]> callback) {
+  public void read(final int amount, final Consumer<ByteBuffer> callback) {
     if (!connected)
       return;
     if (readStream.size() >= amount)
       readAndSpawn(amount, callback);
     else
-      readQueue.add(new ReadEvent(new Integer(amount - readStream.size()), callback));
+      readQueue.add(new ReadEvent(Integer.valueOf(amount), callback));
+    reactor.execute(updateRead);
   }
   
-  public void readUntil(final ByteArrayPattern matcher, final Consumer<byte[]> callback) {
+  public void readUntil(final ByteArrayPattern matcher, final Consumer<ByteBuffer> callback) {
     if (!connected)
       return;
-    int index = matcher.find(readStream.data(), readStream.pos(), readStream.size());
+    int index = readStream.find(matcher);
     if (index >= 0)
       readAndSpawn(index + matcher.size(), callback);
     else
       readQueue.add(new ReadEvent(matcher, callback));
+    reactor.execute(updateRead);
   }
   
   public void close() throws IOException {
-    if (!connected)
-      return;
-    connected = false;
-    channel.shutdownInput();
-    channel.shutdownOutput();
+    synchronized (this) {
+      if (!connected)
+        return;
+      connected = false;
+    }
+    
+    // remove from connected clients
+    server.removeClient(this);
+    reactor.deregister();
+    server = null;
+    
     if (key != null)
       key.cancel();
-    
-    // free buffers & queues
-    readBuffer.clear();
-    readBuffer = null;
+    try {
+      channel.close();
+    } finally {
+      // buffers and queues are released on the reactor thread,
+      // which is the only one that may still be using them
+      if (reactor.inReactorThread())
+        release();
+      else
+        reactor.execute(this::release);
+    }
+  }
+  
+  private void release() {
     readStream.clear();
     readQueue.clear();
-    writeQueue.clear();
-    
-    // remove from connected clients
-    final Iterator<WebsockClient> clients = server.getClients().iterator();
-    while (clients.hasNext()) {
-      if (clients.next().getSocketClient() == this) {
-        clients.remove();
-        break;
+    reader = null;
+    releaseWrites();
+    final Runnable callback = closeCallback;
+    closeCallback = null;
+    writabilityCallback = null;
+    overflowCallback = null;
+    readIdleCallback = null;
+    for (final TimerWheel.Timeout timeout : timeouts)
+      timeout.cancel();
+    timeouts.clear();
+    if (callback != null)
+      callback.run();
+  }
+  
+  private void releaseWrites() {
+    WriteEvent event;
+    while ((event = writeQueue.poll()) != null) {
+      pendingBytes.addAndGet(-event.size);
+      release(event);
+    }
+  }
+  
+  private void release(final WriteEvent event) {
+    if (event.header != null)
+      pool.release(event.header);
+    if (event.pooled)
+      pool.release(event.data);
+    if (event.shared != null)
+      event.shared.release();
+    if (event.file != null) {
+      try {
+        event.file.close();
+      } catch (IOException ex) {
+        ex.printStackTrace();
       }
     }
-        
-    // deference server, perform callback and do a GC cycle
-    server = null;
-    if (closeCallback != null)
-      closeCallback.run();
-    System.gc();
   }
   
   protected void performRead() throws IOException {
+    if (!readEnabled()) {
+      interest(SelectionKey.OP_READ, false);
+      return;
+    }
+    // one read per readiness event, the stream only grows past its chunk
+    // size to hold a single frame that does not fit
     try {
-      while ((dataRead = channel.read(readBuffer)) > 0) {
-        readStream.write(readBuffer.array(), dataRead);
-        readBuffer.clear();
-      }
+      dataRead = readStream.readFrom(channel);
     } catch (IOException ex) {
       close();
       return;
     }
+    if (dataRead > 0) {
+      metrics.bytesRead(dataRead);
+      if (readIdleTimeout > 0)
+        lastRead = System.nanoTime();
+    }
     
+    final Consumer<ByteBufferStream> current = reader;
     if (dataRead < 0)
       close();
+    else if (current != null)
+      current.accept(readStream);
     else if (!readQueue.isEmpty())
       handleReadTasks();
   }
   
   public void performWrite() throws IOException {
-    if (writeQueue.isEmpty()) {
-      removeEvent(SelectionKey.OP_WRITE);
+    WriteEvent event;
+    int count, frames;
+    final ByteBuffer[] buffers = reactor.getWriteBuffers();
+    
+    while (connected) {
+      // gather as many queued frames as fit into one write call
+      count = frames = 0;
+      for (final WriteEvent queued : writeQueue) {
+        if (count + 2 > buffers.length)
+          break;
+        if (queued.header != null)
+          buffers[count++] = queued.header;
+        buffers[count++] = queued.data;
+        frames++;
+        // file regions cannot be gathered, the rest waits for the transfer
+        if (queued.file != null)
+          break;
+      }
       
-    } else {
-      final WriteEvent event = writeQueue.remove();
-      final ByteBuffer writeBuffer = ByteBuffer.wrap(event.data);
+      if (frames == 0) {
+        if (pendingBytes.get() <= lowWatermark)
+          setWritable(true);
+        interest(SelectionKey.OP_WRITE, false);
+        return;
+      }
       
+      final long start = timed ? System.nanoTime() : 0;
+      final long written;
       try {
-        dataWritten = channel.write(writeBuffer);
-        while (dataWritten > 0 && writeBuffer.hasRemaining())
-          dataWritten = channel.write(writeBuffer);
+        written = channel.write(buffers, 0, count);
       } catch (IOException ex) {
+        Arrays.fill(buffers, 0, count, null);
         close();
         return;
+      } 
+      Arrays.fill(buffers, 0, count, null);
+      if (written > 0)
+        wrote(written, start);
+      
+      // complete fully written frames, a partial one stays at the head
+      while (frames > 0 && (event = writeQueue.peek()) != null && !event.data.hasRemaining()) {
+        if (event.fileRemaining > 0 && !transferFile(event)) {
+          interest(SelectionKey.OP_WRITE, true);
+          return;
+        }
+        writeQueue.poll();
+        frames--;
+        pendingBytes.addAndGet(-event.size);
+        release(event);
+        if (event.callback != null)
+          executor.execute(event.callback);
       }
       
-      if (dataWritten < 1)
-        close();
-      else if (event.callback != null)
-        server.getThreadPool().submit(event.callback);
+      if (pendingBytes.get() <= lowWatermark)
+        setWritable(true);
+      
+      // socket buffer is full, wait for the next OP_WRITE
+      if (frames > 0) {
+        interest(SelectionKey.OP_WRITE, true);
+        return;
+      }
+    }
+  }
+  
+  private void wrote(final long amount, final long start) {
+    metrics.writeFlushed(amount, timed ? System.nanoTime() - start : 0);
+    if (writeIdleTimeout > 0)
+      lastWrite = System.nanoTime();
+  }
+  
+  private boolean transferFile(final WriteEvent event) throws IOException {
+    long amount;
+    try {
+      do {
+        final long start = timed ? System.nanoTime() : 0;
+        amount = event.file.transferTo(event.filePosition, event.fileRemaining, channel);
+        event.filePosition += amount;
+        event.fileRemaining -= amount;
+        if (amount > 0)
+          wrote(amount, start);
+      } while (amount > 0 && event.fileRemaining > 0);
+      
+      // the frame header promised more bytes than the file still has
+      if (event.fileRemaining > 0 && event.filePosition >= event.file.size())
+        throw new IOException("File truncated during transfer");
+    } catch (IOException ex) {
+      close();
+      return false;
     }
+    return event.fileRemaining == 0;
   }
   
   private void handleReadTasks() {
@@ -211,7 +719,7 @@ public class SocketClient {
         else
           readQueue.add(event);
       } else if (event.goal instanceof ByteArrayPattern) {
-        index = ((ByteArrayPattern)event.goal).find(readStream.data(), readStream.pos(), readStream.size());
+        index = readStream.find((ByteArrayPattern)event.goal);
         if (index >= 0)
           readAndSpawn(index + ((ByteArrayPattern)event.goal).size(), event.callback);
         else
@@ -0,0 +1,200 @@
+package com.protto.jws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SocketReactor implements Runnable {
+  
+  private final int id;
+  private final Thread thread;
+  private final Selector selector;
+  private volatile boolean running;
+  private final WebsockServer server;
+  private final AtomicInteger connections;
+  private final Queue<Runnable> tasks;
+  private final AtomicBoolean wakeupPending;
+  private final TimerWheel timers;
+  private final ByteBuffer[] writeBuffers;
+  public static int MaxGatherBuffers = 64;
+  
+  public SocketReactor(final WebsockServer server, final int id) throws IOException {
+    this.id = id;
+    this.server = server;
+    running = false;
+    connections = new AtomicInteger();
+    tasks = new ConcurrentLinkedQueue<Runnable>();
+    wakeupPending = new AtomicBoolean(true);
+    timers = new TimerWheel();
+    writeBuffers = new ByteBuffer[MaxGatherBuffers];
+    selector = SelectorProvider.provider().openSelector();
+    thread = new Thread(this, "jws-reactor-" + id);
+  }
+  
+  public final int getId() {
+    return id;
+  }
+  
+  public final Selector getSelector() {
+    return selector;
+  }
+  
+  public final TimerWheel getTimers() {
+    return timers;
+  }
+  
+  public final ByteBuffer[] getWriteBuffers() {
+    return writeBuffers;
+  }
+  
+  public final int getConnectionCount() {
+    return connections.get();
+  }
+  
+  public final boolean inReactorThread() {
+    return Thread.currentThread() == thread;
+  }
+  
+  public void start() {
+    running = true;
+    thread.start();
+  }
+  
+  public void stop() {
+    running = false;
+    selector.wakeup();
+  }
+  
+  public void join() throws InterruptedException {
+    thread.join();
+  }
+  
+  public void execute(final Runnable task) {
+    tasks.add(task);
+    // only the first task after the reactor went to sleep has to wake it
+    if (!inReactorThread() && wakeupPending.compareAndSet(false, true))
+      selector.wakeup();
+  }
+  
+  public void register(final WebsockClient client) {
+    connections.incrementAndGet();
+    execute(() -> registerClient(client));
+  }
+  
+  protected void deregister() {
+    connections.decrementAndGet();
+  }
+  
+  private void registerClient(final WebsockClient client) {
+    if (!client.getSocketClient().isConnected())
+      return;
+    final SocketChannel channel = client.getSocketClient().getChannel();
+    try {
+      client.getSocketClient().setKey(channel.register(
+        selector, SelectionKey.OP_READ, client));
+    } catch (IOException ex) {
+      try {
+        client.getSocketClient().close();
+      } catch (IOException closeEx) {
+        closeEx.printStackTrace();
+      }
+    }
+  }
+  
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+  
+  private void dispose() {
+    for (final SelectionKey key : selector.keys()) {
+      try {
+        if (key.attachment() instanceof WebsockClient)
+          ((WebsockClient)key.attachment()).getSocketClient().close();
+        key.cancel();
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    }
+    
+    try {
+      selector.close();
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    }
+  }
+  
+  @Override
+  public void run() {
+    SelectionKey event;
+    WebsockClient client;
+    Iterator<SelectionKey> events;
+    
+    while (running) {
+      try {
+        // tasks queued before the flag was cleared did not wake us, check for them
+        wakeupPending.set(false);
+        if (tasks.isEmpty())
+          selector.select(timers.nextDelay(System.nanoTime()));
+        else
+          selector.selectNow();
+        wakeupPending.set(true);
+      } catch (IOException ex) {
+        ex.printStackTrace();
+        break;
+      }
+      
+      // busy time only, the time spent blocked in select is left out
+      final WebsockMetrics metrics = server.getMetrics();
+      final boolean timed = metrics.isTimed();
+      final long start = timed ? System.nanoTime() : 0;
+      final int ready = selector.selectedKeys().size();
+      runTasks();
+      timers.advance(System.nanoTime());
+      events = selector.selectedKeys().iterator();
+      
+      while (events.hasNext()) {
+        
+        event = events.next();
+        events.remove();
+        
+        try {
+          client = (WebsockClient)event.attachment();
+          if (!event.isValid()) {
+            client.getSocketClient().close();
+            continue;
+          }
+          
+          if (event.isWritable() && event.isValid())
+            client.getSocketClient().performWrite();
+          if (event.isReadable() && event.isValid())
+            client.getSocketClient().performRead();
+          
+        } catch (CancelledKeyException ex) {
+          
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+      if (timed)
+        metrics.loopCompleted(ready, System.nanoTime() - start);
+    }
+    
+    dispose();
+  }
+}
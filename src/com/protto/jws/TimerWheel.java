@@ -0,0 +1,153 @@
+package com.protto.jws;
+
+import java.util.concurrent.TimeUnit;
+
+// not thread safe, every wheel belongs to one reactor thread
+public class TimerWheel {
+  
+  public class Timeout {
+    private final Runnable task;
+    private long rounds;
+    private int bucket;
+    private Timeout prev;
+    private Timeout next;
+    
+    private Timeout(final Runnable task, final long rounds, final int bucket) {
+      this.task = task;
+      this.rounds = rounds;
+      this.bucket = bucket;
+    }
+    
+    public boolean isPending() {
+      return bucket != Done;
+    }
+    
+    public boolean cancel() {
+      if (bucket == Done)
+        return false;
+      // expired in this tick but not run yet
+      if (bucket == Expired)
+        bucket = Done;
+      else
+        unlink(this);
+      return true;
+    }
+  }
+  
+  private static final int Done = -1;
+  private static final int Expired = -2;
+  public static int DefaultSize = 512;
+  public static long DefaultTickMillis = 100;
+  
+  private final Timeout[] buckets;
+  private final int mask;
+  private final long tickNanos;
+  private long tick;
+  private long nextTick;
+  private int size;
+  
+  public TimerWheel() {
+    this(DefaultSize, DefaultTickMillis);
+  }
+  
+  public TimerWheel(final int wheelSize, final long tickMillis) {
+    int length = 1;
+    while (length < wheelSize)
+      length <<= 1;
+    buckets = new Timeout[length];
+    mask = length - 1;
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    nextTick = System.nanoTime() + tickNanos;
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  public Timeout schedule(final long delayMillis, final Runnable task) {
+    final long now = System.nanoTime();
+    // an empty wheel is not advanced while the reactor sleeps, catch up first
+    if (size == 0)
+      skip(now);
+    // counted from the next tick boundary and rounded up, a timeout never
+    // fires early but may fire up to a tick late
+    final long remaining = now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) - nextTick;
+    final long ticks = remaining <= 0 ? 1 : 1 + (remaining + tickNanos - 1) / tickNanos;
+    final Timeout timeout = new Timeout(task, (ticks - 1) / buckets.length, (int)((tick + ticks) & mask));
+    final Timeout head = buckets[timeout.bucket];
+    timeout.next = head;
+    if (head != null)
+      head.prev = timeout;
+    buckets[timeout.bucket] = timeout;
+    size++;
+    return timeout;
+  }
+  
+  private void unlink(final Timeout timeout) {
+    if (timeout.prev != null)
+      timeout.prev.next = timeout.next;
+    else
+      buckets[timeout.bucket] = timeout.next;
+    if (timeout.next != null)
+      timeout.next.prev = timeout.prev;
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.bucket = Done;
+    size--;
+  }
+  
+  // milliseconds until the next tick is due, 0 when nothing is scheduled
+  public long nextDelay(final long now) {
+    if (size == 0)
+      return 0;
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTick - now + 999_999));
+  }
+  
+  private void skip(final long now) {
+    if (now - nextTick < 0)
+      return;
+    final long ticks = (now - nextTick) / tickNanos + 1;
+    tick += ticks;
+    nextTick += ticks * tickNanos;
+  }
+  
+  public void advance(final long now) {
+    while (now - nextTick >= 0) {
+      if (size == 0) {
+        skip(now);
+        return;
+      }
+      nextTick += tickNanos;
+      tick++;
+      
+      // unlink expired timeouts first, their tasks may cancel or schedule others
+      Timeout timeout = buckets[(int)(tick & mask)], next, expired = null;
+      while (timeout != null) {
+        next = timeout.next;
+        if (timeout.rounds > 0) {
+          timeout.rounds--;
+        } else {
+          unlink(timeout);
+          timeout.bucket = Expired;
+          timeout.next = expired;
+          expired = timeout;
+        }
+        timeout = next;
+      }
+      
+      while (expired != null) {
+        timeout = expired;
+        expired = timeout.next;
+        timeout.next = null;
+        if (timeout.bucket != Expired)
+          continue;
+        timeout.bucket = Done;
+        try {
+          timeout.task.run();
+        } catch (Exception ex) {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package com.protto.jws;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class TopicRegistry {
+  
+  private final ConcurrentMap<String, Set<WebsockClient>> topics;
+  
+  public TopicRegistry() {
+    topics = new ConcurrentHashMap<String, Set<WebsockClient>>();
+  }
+  
+  public int size() {
+    return topics.size();
+  }
+  
+  public Set<String> getTopics() {
+    return Collections.unmodifiableSet(topics.keySet());
+  }
+  
+  public Set<WebsockClient> getSubscribers(final String topic) {
+    final Set<WebsockClient> members = topics.get(topic);
+    return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+  }
+  
+  public int getSubscriberCount(final String topic) {
+    final Set<WebsockClient> members = topics.get(topic);
+    return members == null ? 0 : members.size();
+  }
+  
+  public boolean subscribe(final String topic, final WebsockClient client) {
+    final boolean[] added = new boolean[1];
+    topics.compute(topic, (name, members) -> {
+      if (members == null)
+        members = ConcurrentHashMap.newKeySet();
+      added[0] = members.add(client);
+      return members;
+    });
+    return added[0];
+  }
+  
+  public boolean unsubscribe(final String topic, final WebsockClient client) {
+    final boolean[] removed = new boolean[1];
+    topics.computeIfPresent(topic, (name, members) -> {
+      removed[0] = members.remove(client);
+      return members.isEmpty() ? null : members;
+    });
+    return removed[0];
+  }
+}
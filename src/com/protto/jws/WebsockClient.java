@@ -1,11 +1,28 @@
 package com.protto.jws;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
 import java.util.function.Consumer;
 
 public class WebsockClient {
@@ -14,7 +31,11 @@ public class WebsockClient {
     Closed, Connecting, Open;
   }
   
-  private enum WebsockOpcode {
+  private enum DecodeState {
+    Header, Length, Mask, Payload, Failed;
+  }
+  
+  enum WebsockOpcode {
     Continue(0x00), Text(0x01), Binary(0x02),
     Close(0x08), Ping(0x09), Pong(0x0a);
     private final int value;
@@ -24,6 +45,9 @@ public class WebsockClient {
     public final int value() {
       return value;
     }
+    public final boolean isControl() {
+      return value >= 0x08;
+    }
     public static final WebsockOpcode get(final int value) {
       switch (value) {
         case 0x00: return Continue;
@@ -43,54 +67,239 @@ public class WebsockClient {
     public boolean[] rsv;
     public boolean masked;
     public byte[] payload;
+    public boolean lent;
+    public ByteBuffer data;
     public int payloadSize;
     public WebsockOpcode opcode;
   }
   
   private class WebsockPing {
     public final long created;
+    public final byte[] data;
     public final BiConsumer<Long, byte[]> callback;
-    public WebsockPing(final BiConsumer<Long, byte[]> callback) {
+    public WebsockPing(final byte[] data, final BiConsumer<Long, byte[]> callback) {
+      this.data = data;
       this.callback = callback;
       this.created = System.nanoTime();
     }
   }
   
-  private WebsockState state;
+  private class FragmentSender implements Runnable {
+    private final ReadableByteChannel source;
+    private final WebsockOpcode opcode;
+    private final Runnable callback;
+    private boolean started;
+    private boolean finished;
+    private int inFlight;
+    
+    public FragmentSender(final ReadableByteChannel source, final WebsockOpcode opcode, final Runnable callback) {
+      this.source = source;
+      this.opcode = opcode;
+      this.callback = callback;
+    }
+    
+    // runs when a fragment has been written
+    @Override
+    public synchronized void run() {
+      inFlight--;
+      if (finished && inFlight == 0)
+        endFragments(callback);
+      else
+        pump();
+    }
+    
+    public synchronized void pump() {
+      // two fragments in flight keep the socket busy while the next one is read
+      final BufferPool pool = client.getBufferPool();
+      while (!finished && inFlight < 2 && isConnected()) {
+        final ByteBuffer output = pool.allocate(MaxHeaderSize + FragmentSize);
+        output.limit(MaxHeaderSize + FragmentSize).position(MaxHeaderSize);
+        try {
+          while (output.hasRemaining() && !finished)
+            finished = source.read(output) < 0;
+        } catch (IOException ex) {
+          ex.printStackTrace();
+          pool.release(output);
+          finished = true;
+          // the message is already half sent, the connection is unusable
+          close(1011, "");
+          return;
+        }
+        
+        final int size = output.position() - MaxHeaderSize;
+        final int start = MaxHeaderSize - headerSize(size);
+        output.position(start);
+        encodeHeader(output, started ? WebsockOpcode.Continue : opcode, size, false, finished);
+        output.limit(MaxHeaderSize + size).position(start);
+        started = true;
+        inFlight++;
+        metrics.frameSent(size);
+        client.write(output, true, this);
+      }
+    }
+  }
+  
+  private volatile WebsockState state;
+  private DecodeState decodeState;
+  private boolean messageCompressed;
+  private boolean messageStreamed;
+  private volatile PerMessageDeflate.Session deflate;
+  private WebsockOpcode messageOpcode;
+  private int handshakeScanned;
+  private volatile long handshakeStart;
+  private final WebsockMetrics metrics;
+  private final boolean timed;
   private final WebsockFrame frame;
   private final SocketClient client;
   private final Deque<WebsockPing> pings;
+  private final TopicRegistry topics;
+  private final Set<String> subscriptions;
+  private final int maxFrameSize;
+  private final int maxMessageSize;
+  private final long closeTimeout;
+  private final PerMessageDeflate compression;
+  private final long keepaliveInterval;
+  private final int keepaliveMisses;
+  private final AtomicInteger missedPongs;
+  private long keepaliveToken;
+  private volatile LatencyHistogram pingRtt;
+  private final LatencyHistogram serverPingRtt;
+  private final AtomicInteger pendingDispatches;
+  private final AtomicBoolean dispatchPaused;
+  private final Deque<Runnable> deferredSends;
+  private FragmentSender fragmentSender;
   private final ByteArrayStream fragmentBuilder;
   
-  private Consumer<byte[]> pongCallback;
-  private Consumer<byte[]> messageCallback;
-  private Consumer<WebsockClient> connectCallback;
-  private BiConsumer<Integer, String> closeCallback;
-  private BiConsumer<HttpRequest, HttpUpgrade> upgradeCallback;
+  private volatile Consumer<byte[]> pongCallback;
+  private volatile Consumer<byte[]> messageCallback;
+  private volatile Consumer<ByteBuffer> messageBufferCallback;
+  private volatile Consumer<Boolean> messageStartCallback;
+  private volatile Consumer<ByteBuffer> fragmentCallback;
+  private volatile Runnable messageEndCallback;
+  private volatile Consumer<WebsockClient> connectCallback;
+  private volatile BiConsumer<Integer, String> closeCallback;
+  private volatile BiConsumer<HttpRequest, HttpUpgrade> upgradeCallback;
   
   private static ByteArrayPattern clrfPattern;
+  private static final byte[] headerTooLarge = "HTTP/1.1 431 Request Header Fields Too Large\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  public static int CopyThreshold = 1024;
+  public static int FragmentSize = 64 * 1024;
+  public static int MaxPendingFragments = 16;
+  private static final int MaxHeaderSize = 10;
+  private static final ByteBuffer emptyPayload = ByteBuffer.allocate(0);
   private static final byte[] defaultPingData = new byte[] {'P','i','n','g'};
   
   public WebsockClient(final SocketClient client) {
     this.client = client;
     frame = new WebsockFrame();
     frame.rsv = new boolean[3];
-    fragmentBuilder = new ByteArrayStream();
+    frame.mask = new byte[4];
+    decodeState = DecodeState.Header;
+    fragmentBuilder = new ByteArrayStream(client.getBufferPool());
     pings = new LinkedBlockingDeque<WebsockPing>();
+    topics = client.getServer().getTopics();
+    maxFrameSize = client.getServer().getMaxFrameSize();
+    maxMessageSize = client.getServer().getMaxMessageSize();
+    closeTimeout = client.getServer().getCloseTimeout();
+    compression = client.getServer().getCompression();
+    keepaliveInterval = client.getServer().getKeepaliveInterval();
+    keepaliveMisses = client.getServer().getKeepaliveMisses();
+    missedPongs = new AtomicInteger();
+    serverPingRtt = client.getServer().getPingRtt();
+    metrics = client.getServer().getMetrics();
+    timed = metrics.isTimed();
+    pendingDispatches = new AtomicInteger();
+    dispatchPaused = new AtomicBoolean();
+    deferredSends = new ArrayDeque<Runnable>();
+    subscriptions = ConcurrentHashMap.newKeySet();
+    client.onClose(this::dispose);
+    client.onOverflow(this::overflow);
+    client.onReadIdle(this::readIdle);
     
     if (clrfPattern == null)
       clrfPattern = new ByteArrayPattern(new byte[] {'\r','\n','\r','\n'});
     handshake();
   }
   
+  public final long getId() {
+    return client.getId();
+  }
+  
   public final SocketClient getSocketClient() {
     return client;
   }
   
+  public final Set<String> getSubscriptions() {
+    return Collections.unmodifiableSet(subscriptions);
+  }
+  
+  public WebsockClient subscribe(final String topic) {
+    if (client.isConnected() && subscriptions.add(topic)) {
+      topics.subscribe(topic, this);
+      // close() may have swept the subscriptions in between
+      if (!client.isConnected())
+        unsubscribe(topic);
+    }
+    return this;
+  }
+  
+  public WebsockClient unsubscribe(final String topic) {
+    if (subscriptions.remove(topic))
+      topics.unsubscribe(topic, this);
+    return this;
+  }
+  
+  private void dispose() {
+    metrics.connectionClosed();
+    // closed before the upgrade was written
+    if (handshakeStart != 0)
+      metrics.handshakeFailed();
+    for (final String topic : subscriptions)
+      unsubscribe(topic);
+    pings.clear();
+    fragmentBuilder.clear();
+    // deferred sends are no-ops by now, running them releases what they hold
+    synchronized (deferredSends) {
+      fragmentSender = null;
+      Runnable task;
+      while ((task = deferredSends.poll()) != null)
+        task.run();
+    }
+    if (deflate != null)
+      deflate.dispose();
+    pongCallback = null;
+    messageCallback = null;
+    messageBufferCallback = null;
+    messageStartCallback = null;
+    fragmentCallback = null;
+    messageEndCallback = null;
+    connectCallback = null;
+    closeCallback = null;
+    upgradeCallback = null;
+  }
+  
+  public final boolean hasCompression() {
+    return deflate != null;
+  }
+  
   public final boolean isConnected() {
     return state == WebsockState.Open && client.isConnected();
   }
   
+  public final boolean isWritable() {
+    return client.isWritable();
+  }
+  
+  public WebsockClient pauseReading() {
+    client.pauseReading();
+    return this;
+  }
+  
+  public WebsockClient resumeReading() {
+    client.resumeReading();
+    return this;
+  }
+  
   public WebsockClient onPong(final Consumer<byte[]> callback) {
     pongCallback = callback;
     return this;
@@ -101,6 +310,31 @@ public class WebsockClient {
     return this;
   }
   
+  public WebsockClient onMessageBuffer(final Consumer<ByteBuffer> callback) {
+    messageBufferCallback = callback;
+    return this;
+  }
+  
+  public WebsockClient onMessageStart(final Consumer<Boolean> callback) {
+    messageStartCallback = callback;
+    return this;
+  }
+  
+  public WebsockClient onFragment(final Consumer<ByteBuffer> callback) {
+    fragmentCallback = callback;
+    return this;
+  }
+  
+  public WebsockClient onMessageEnd(final Runnable callback) {
+    messageEndCallback = callback;
+    return this;
+  }
+  
+  public WebsockClient onWritabilityChanged(final Consumer<Boolean> callback) {
+    client.onWritabilityChanged(callback);
+    return this;
+  }
+  
   public WebsockClient onConnect(final Consumer<WebsockClient> callback) {
     connectCallback = callback;
     return this;
@@ -119,8 +353,6 @@ public class WebsockClient {
   public WebsockClient closeConnection() {
     if (!client.isConnected())
       return this;
-    pings.clear();
-    fragmentBuilder.clear();
     try {
       client.close();
     } catch (IOException ex) {
@@ -135,11 +367,57 @@ public class WebsockClient {
   }
   
   public WebsockClient ping(final byte[] data, final BiConsumer<Long, byte[]> callback) {
-    pings.add(new WebsockPing(callback));
+    pings.add(new WebsockPing(data, callback));
     send(data, data.length, WebsockOpcode.Ping);
     return this;
   }
   
+  // null until the first pong arrives
+  public final LatencyHistogram getPingRtt() {
+    return pingRtt;
+  }
+  
+  private void startKeepalive() {
+    // a random first delay spreads the pings of connections opened together
+    if (keepaliveInterval > 0)
+      client.schedule(1 + ThreadLocalRandom.current().nextLong(keepaliveInterval), this::keepalive);
+  }
+  
+  private void keepalive() {
+    if (!isConnected())
+      return;
+    // half open connections never answer, a close frame would not arrive either
+    if (missedPongs.getAndIncrement() >= keepaliveMisses) {
+      closeConnection();
+      return;
+    }
+    final byte[] token = new byte[8];
+    final long value = ++keepaliveToken;
+    for (int i = 0; i < 8; i++)
+      token[i] = (byte)(value >>> (56 - i * 8));
+    pings.add(new WebsockPing(token, null));
+    send(token, token.length, WebsockOpcode.Ping);
+    client.schedule(keepaliveInterval, this::keepalive);
+  }
+  
+  private WebsockPing matchPing(final byte[] data) {
+    // pongs answer pings in order, earlier pings left unanswered are dropped
+    final Iterator<WebsockPing> iterator = pings.iterator();
+    int skipped = 0;
+    while (iterator.hasNext()) {
+      final WebsockPing ping = iterator.next();
+      if (!Arrays.equals(ping.data, data)) {
+        skipped++;
+        continue;
+      }
+      iterator.remove();
+      for (; skipped > 0; skipped--)
+        pings.poll();
+      return ping;
+    }
+    return null;
+  }
+  
   public WebsockClient close() {
     return close(1000, "");
   }
@@ -153,19 +431,50 @@ public class WebsockClient {
   }
   
   public WebsockClient close(final int code, final byte[] reason) {
-    if (isConnected())
+    return close(code, reason, null);
+  }
+  
+  private WebsockClient close(final int code, final byte[] reason, final Runnable callback) {
+    if (!isConnected())
       return this;
     
     final byte[] data = new byte[reason.length + 2];
     data[0] = (byte)((code >> 8) & 0xff);
     data[1] = (byte)(code & 0xff);
     System.arraycopy(reason, 0, data, 2, reason.length);
-    send(data, data.length, WebsockOpcode.Close, () -> {
-      state = WebsockState.Closed;
-    });
+    send(data, data.length, WebsockOpcode.Close, callback);
+    state = WebsockState.Closed;
+    closeDeadline();
     return this;
   }
   
+  // the peer gets a bounded time to answer a close frame
+  private void closeDeadline() {
+    if (closeTimeout > 0)
+      client.schedule(closeTimeout, this::closeConnection);
+  }
+  
+  private void readIdle() {
+    if (isConnected())
+      close(1001, "Idle timeout");
+    else
+      closeConnection();
+  }
+  
+  private void fail(final int code) {
+    decodeState = DecodeState.Failed;
+    if (isConnected())
+      close(code, new byte[0], () -> closeConnection());
+    else
+      closeConnection();
+  }
+  
+  private void overflow(final int code) {
+    // the peer is not keeping up, give up on it
+    if (isConnected())
+      close(code, new byte[0], () -> closeConnection());
+  }
+  
   public WebsockClient send(final String data) {
     return send(data.getBytes(Charset.defaultCharset()));
   }
@@ -190,214 +499,624 @@ public class WebsockClient {
     return send(data, amount, opcode, null);
   }
   
+  public WebsockClient send(final ByteBuffer data) {
+    return send(data, WebsockOpcode.Text, false, null);
+  }
+  
+  public WebsockClient sendBytes(final ByteBuffer data) {
+    return send(data, WebsockOpcode.Binary, false, null);
+  }
+  
+  // payloads of CopyThreshold bytes or more are written straight from the
+  // buffer, it may only be reused once the callback has run
+  public WebsockClient send(final ByteBuffer data, final Runnable callback) {
+    return send(data, WebsockOpcode.Text, true, callback);
+  }
+  
+  public WebsockClient sendBytes(final ByteBuffer data, final Runnable callback) {
+    return send(data, WebsockOpcode.Binary, true, callback);
+  }
+  
   private WebsockClient send(final byte[] data, final int size, final WebsockOpcode opcode, final Runnable callback) {
+    return send(ByteBuffer.wrap(data, 0, size), opcode, false, callback);
+  }
+  
+  public WebsockClient send(final ReadableByteChannel source, final Runnable callback) {
+    return send(source, WebsockOpcode.Text, callback);
+  }
+  
+  public WebsockClient sendBytes(final ReadableByteChannel source, final Runnable callback) {
+    return send(source, WebsockOpcode.Binary, callback);
+  }
+  
+  private WebsockClient send(final ReadableByteChannel source, final WebsockOpcode opcode, final Runnable callback) {
     if (!isConnected())
       return this;
+    final FragmentSender sender = new FragmentSender(source, opcode, callback);
+    synchronized (deferredSends) {
+      if (fragmentSender != null) {
+        deferredSends.add(() -> send(source, opcode, callback));
+        return this;
+      }
+      fragmentSender = sender;
+    }
+    sender.pump();
+    return this;
+  }
+  
+  public WebsockClient sendFile(final Path path) throws IOException {
+    return sendFile(path, 0, Long.MAX_VALUE, null);
+  }
+  
+  public WebsockClient sendFile(final Path path, final long offset, final long length) throws IOException {
+    return sendFile(path, offset, length, null);
+  }
+  
+  public WebsockClient sendFile(final Path path, final long offset, final long length, final Runnable callback) throws IOException {
+    if (offset < 0 || length < 0)
+      throw new IllegalArgumentException("Invalid file region " + offset + "+" + length);
+    if (!isConnected())
+      return this;
+    final FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+    final long size = Math.max(0, Math.min(length, file.size() - offset));
+    if (deferSend(() -> sendFile(file, offset, size, callback)))
+      return this;
+    sendFile(file, offset, size, callback);
+    return this;
+  }
+  
+  private void sendFile(final FileChannel file, final long offset, final long size, final Runnable callback) {
+    // one binary frame, the socket client owns and closes the file from here on
+    final ByteBuffer header = client.getBufferPool().allocate(headerSize(size));
+    encodeHeader(header, WebsockOpcode.Binary, size, false);
+    header.flip();
+    metrics.frameSent(size);
+    client.writeFile(header, file, offset, size, callback);
+  }
+  
+  private boolean deferSend(final ByteBuffer data, final WebsockOpcode opcode, final boolean zeroCopy, final Runnable callback) {
+    // the caller may reuse its buffer as soon as a copying send returns,
+    // a held back frame owns its copy and needs no second one
+    synchronized (deferredSends) {
+      if (fragmentSender == null)
+        return false;
+      ByteBuffer payload = data;
+      if (!zeroCopy) {
+        payload = ByteBuffer.allocate(data.remaining());
+        payload.put(data.duplicate());
+        payload.flip();
+      }
+      final ByteBuffer held = payload;
+      deferredSends.add(() -> send(held, opcode, true, callback));
+      return true;
+    }
+  }
+  
+  private boolean deferSend(final Runnable task) {
+    // data frames may not be interleaved with the fragments of another message
+    synchronized (deferredSends) {
+      if (fragmentSender == null)
+        return false;
+      deferredSends.add(task);
+      return true;
+    }
+  }
+  
+  private void endFragments(final Runnable callback) {
+    synchronized (deferredSends) {
+      fragmentSender = null;
+      Runnable task;
+      while (fragmentSender == null && (task = deferredSends.poll()) != null)
+        task.run();
+    }
+    if (callback != null)
+      callback.run();
+  }
+  
+  private WebsockClient send(final ByteBuffer data, final WebsockOpcode opcode, final boolean zeroCopy, final Runnable callback) {
+    if (!isConnected())
+      return this;
+    if (!opcode.isControl() && deferSend(data, opcode, zeroCopy, callback))
+      return this;
+    
+    final int size = data.remaining();
+    final BufferPool pool = client.getBufferPool();
+    metrics.frameSent(size);
+    
+    final PerMessageDeflate.Session session = deflate;
+    if (session != null && size >= session.getExtension().getMinSize() && !opcode.isControl()) {
+      synchronized (session) {
+        final ByteBuffer output = encodeCompressedFrame(session.compress(pool, data, MaxHeaderSize), opcode);
+        // with context takeover later frames depend on this one, it cannot be dropped
+        client.writeFrame(null, output, true, session.isServerNoContextTakeover(), callback);
+      }
+      return this;
+    }
+    
+    // small frames are cheaper as one buffer, larger payloads are
+    // written straight from the caller's buffer behind a header when
+    // the caller waits for the callback before reusing it
+    if (opcode.isControl()) {
+      client.write(encodeFrame(pool, data, opcode), true, callback);
+    } else if (size < CopyThreshold || !zeroCopy) {
+      client.writeFrame(null, encodeFrame(pool, data, opcode), true, callback);
+    } else {
+      final ByteBuffer header = pool.allocate(headerSize(size));
+      encodeHeader(header, opcode, size, false);
+      header.flip();
+      client.writeFrame(header, data.duplicate(), false, callback);
+    }
+    return this;
+  }
+  
+  static ByteBuffer encodeFrame(final BufferPool pool, final ByteBuffer data, final WebsockOpcode opcode) {
+    final int size = data.remaining();
+    final ByteBuffer output = pool.allocate(headerSize(size) + size);
+    encodeHeader(output, opcode, size, false);
+    output.put(data.duplicate());
+    output.flip();
+    return output;
+  }
+  
+  static ByteBuffer encodeFrame(final BufferPool pool, final ByteBuffer data, final WebsockOpcode opcode, final PerMessageDeflate extension) {
+    return encodeCompressedFrame(extension.compress(pool, data, MaxHeaderSize), opcode);
+  }
+  
+  static ByteBuffer encodeCompressedFrame(final ByteBuffer compressed, final WebsockOpcode opcode) {
+    // the header goes into the headroom left in front of the deflated data
+    final int size = compressed.remaining();
+    final int start = compressed.position() - headerSize(size);
+    compressed.position(start);
+    encodeHeader(compressed, opcode, size, true);
+    compressed.position(start);
+    return compressed;
+  }
+  
+  void sendShared(final SharedBuffer frame, final boolean compressed) {
+    frame.retain();
+    if (deferSend(() -> {
+      try {
+        sendShared(frame, compressed);
+      } finally {
+        frame.release();
+      }
+    }))
+      return;
+    frame.release();
+    metrics.frameSent(frame.size());
     
-    byte[] output;
-    int i, padding, offset = 0;
+    final PerMessageDeflate.Session session = deflate;
+    if (!compressed || session.isServerNoContextTakeover()) {
+      client.write(frame, null);
+      return;
+    }
     
+    // our deflate history no longer matches what the peer has inflated
+    synchronized (session) {
+      session.resetContext();
+      client.write(frame, null);
+    }
+  }
+  
+  private static int headerSize(final long size) {
     if (size < 126)
-      padding = 0;
+      return 2;
     else if (size < 65536)
-      padding = 2;
+      return 4;
     else
-      padding = 8;
-    
-    output = new byte[2 + padding + size];
-    output[offset++] = (byte)(0x80 | opcode.value());
-    
+      return 10;
+  }
+  
+  private static void encodeHeader(final ByteBuffer output, final WebsockOpcode opcode, final long size, final boolean compressed) {
+    encodeHeader(output, opcode, size, compressed, true);
+  }
+  
+  private static void encodeHeader(final ByteBuffer output, final WebsockOpcode opcode, final long size, final boolean compressed, final boolean fin) {
+    output.put((byte)((fin ? 0x80 : 0) | (compressed ? 0x40 : 0) | opcode.value()));
     if (size < 126) {
-      output[offset++] = (byte)(size);
+      output.put((byte)size);
     } else if (size < 65536) {
-      output[offset++] = 126;
-      for (i = 8; i > -1; i -= 8)
-        output[offset++] = (byte)((size >> i) & 0xff);
+      output.put((byte)126);
+      output.putShort((short)size);
     } else {
-      output[offset++] = 127;
-      for (i = 56; i > -1; i -= 8)
-        output[offset++] = (byte)((size >> i) & 0xff);
+      output.put((byte)127);
+      output.putLong(size);
     }
-    
-    for (i = 0; i < size; i++)
-      output[offset++] = data[i];
-
-    client.write(output, callback);
-    return this;
   }
   
   private void handshake() {
     state = WebsockState.Connecting;
-    
-    client.readUntil(clrfPattern, httpData -> {
-      try {
-        HttpRequest request = new HttpRequest(client.getServer(), new String(httpData, Charset.defaultCharset()));
-        HttpUpgrade upgrade = new HttpUpgrade(request.getHeader("Sec-WebSocket-Key"));
-        if (upgradeCallback != null)
-          upgradeCallback.accept(request, upgrade);
-        request.dispose();
-        
-        if (upgrade.hasError()) {
-          upgrade.dispose();
+    handshakeStart = System.nanoTime();
+    client.setReader(this::readHandshake);
+    final long timeout = client.getServer().getHandshakeTimeout();
+    if (timeout > 0)
+      client.schedule(timeout, () -> {
+        if (state == WebsockState.Connecting)
           closeConnection();
-          
-        } else {
-          client.write(upgrade.toString().getBytes(Charset.defaultCharset()), () -> {
-            state = WebsockState.Open;
-            if (connectCallback != null)
-              connectCallback.accept(this);
-            parseHeaders();
-            System.gc();
-          });
-          upgrade.dispose();
-        }
-        
-      } catch (Exception ex) {
-        ex.printStackTrace();
-        closeConnection();
-      }
-    });
+      });
   }
   
-  private void parseHeaders() {
-    if (!client.isConnected())
+  private void readHandshake(final ByteBufferStream stream) {
+    // resume the search where the previous read left off
+    final int index = stream.find(clrfPattern, Math.max(0, handshakeScanned - 3));
+    if (index < 0)
+      handshakeScanned = stream.size();
+    final int size = index < 0 ? handshakeScanned : index + clrfPattern.size();
+    if (size > HttpRequest.MaxHeaderSize) {
+      client.setReader(null);
+      client.write(headerTooLarge, this::closeConnection);
+      return;
+    }
+    if (index < 0)
       return;
     
-    client.read(2, header -> {
-      frame.fin    = ((header[0] >> 7) & 1) > 0;
-      frame.rsv[0] = ((header[0] >> 6) & 1) > 0;
-      frame.rsv[1] = ((header[0] >> 5) & 1) > 0;
-      frame.rsv[2] = ((header[0] >> 4) & 1) > 0;
-      frame.opcode = WebsockOpcode.get(header[0] & 0x0f);
-      
-      frame.payloadSize = (int)((header[1] & 0xff) & (~0x80));
-      frame.masked = ((header[1] >> 7) & 1) > 0;
-      
-      parsePayloadLength();
-    });
+    // the request is copied out once, nothing else is read until the upgrade is written
+    final byte[] httpBytes = new byte[size];
+    stream.read(httpBytes);
+    client.setReader(null);
+    client.dispatch(() -> upgrade(httpBytes));
   }
   
-  private void parsePayloadLength() {
-    
-    if (frame.payloadSize < 126) {
-      parseMask();
-      return;
-    }
-    
-    final int padding = frame.payloadSize < 65536 ? 2 : 8;
-    client.read(padding, length -> {
-      frame.payloadSize = 0;
+  private void upgrade(final byte[] httpBytes) {
+    try {
+      final HttpRequest request = new HttpRequest(httpBytes, httpBytes.length);
+      final HttpUpgrade upgrade = new HttpUpgrade(request.getHeader("Sec-WebSocket-Key"));
+      final BiConsumer<HttpRequest, HttpUpgrade> onUpgrade = upgradeCallback;
+      if (onUpgrade != null)
+        onUpgrade.accept(request, upgrade);
+      
+      final PerMessageDeflate extension = compression;
+      if (extension != null && !upgrade.hasError()) {
+        deflate = extension.negotiate(request.getHeader("Sec-WebSocket-Extensions"));
+        if (deflate != null)
+          upgrade.setHeader("Sec-WebSocket-Extensions", deflate.toString());
+      }
+      request.dispose();
       
-      if (padding == 2) {
-        for (short j = 0, i = 8; i > -1; i -= 8, j++)
-          frame.payloadSize |= (length[j] & 0xff) << i;
+      if (upgrade.hasError()) {
+        client.write(upgrade.toBytes(), this::closeConnection);
+        upgrade.dispose();
         
       } else {
-        for (short j = 0, i = 56; i > -1; i -= 8, j++)
-          frame.payloadSize |= (length[j] & 0xff) << i;
+        client.write(upgrade.toBytes(), () -> {
+          state = WebsockState.Open;
+          metrics.handshakeCompleted(System.nanoTime() - handshakeStart);
+          handshakeStart = 0;
+          startKeepalive();
+          final Consumer<WebsockClient> onConnect = connectCallback;
+          if (onConnect != null)
+            onConnect.accept(this);
+          client.setReader(this::decode);
+        });
+        upgrade.dispose();
       }
       
-      parseMask();
-    });
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      closeConnection();
+    }
   }
   
-  private void parseMask() {
-    if (!frame.masked) {
-      parsePayload();
-    } else {
-      client.read(4, mask -> {
-        frame.mask = mask;
-        parsePayload();
-      });
+  private void decode(final ByteBufferStream stream) {
+    // the rest stays buffered until the handler backlog drains
+    while (client.isConnected() && !client.isBacklogPaused()) {
+      switch (decodeState) {
+        case Failed:
+          return;
+        
+        case Header: {
+          if (stream.size() < 2)
+            return;
+          final byte flags = stream.readByte(), length = stream.readByte();
+          frame.fin    = ((flags >> 7) & 1) > 0;
+          frame.rsv[0] = ((flags >> 6) & 1) > 0;
+          frame.rsv[1] = ((flags >> 5) & 1) > 0;
+          frame.rsv[2] = ((flags >> 4) & 1) > 0;
+          frame.opcode = WebsockOpcode.get(flags & 0x0f);
+          if (frame.opcode == null || frame.rsv[1] || frame.rsv[2]) {
+            fail(1002);
+            return;
+          }
+          
+          // RSV1 marks the first frame of a deflated message
+          if (frame.rsv[0] && (deflate == null || frame.opcode.isControl() || frame.opcode == WebsockOpcode.Continue)) {
+            fail(1002);
+            return;
+          }
+          if (!frame.opcode.isControl() && frame.opcode != WebsockOpcode.Continue)
+            messageCompressed = frame.rsv[0];
+          
+          frame.payloadSize = length & 0x7f;
+          frame.masked = ((length >> 7) & 1) > 0;
+          if (frame.opcode.isControl() && (!frame.fin || frame.payloadSize > 125)) {
+            fail(1002);
+            return;
+          }
+          if (frame.payloadSize < 126 && !checkSize())
+            return;
+          decodeState = frame.payloadSize < 126 ? DecodeState.Mask : DecodeState.Length;
+          break;
+        }
+        
+        case Length: {
+          final int padding = frame.payloadSize == 126 ? 2 : 8;
+          if (stream.size() < padding)
+            return;
+          if (padding == 2) {
+            frame.payloadSize = stream.readShort() & 0xffff;
+          } else {
+            // reject before the int cast can wrap the length around
+            final long size = stream.readLong();
+            if (size < 0 || size > maxFrameSize) {
+              fail(1009);
+              return;
+            }
+            frame.payloadSize = (int)size;
+          }
+          if (!checkSize())
+            return;
+          decodeState = DecodeState.Mask;
+          break;
+        }
+        
+        case Mask: {
+          if (frame.masked) {
+            if (stream.size() < 4)
+              return;
+            stream.read(frame.mask);
+          }
+          decodeState = DecodeState.Payload;
+          break;
+        }
+        
+        case Payload: {
+          if (stream.size() < frame.payloadSize)
+            return;
+          final long start = timed ? System.nanoTime() : 0;
+          final WebsockOpcode opcode = frame.opcode;
+          final int payloadSize = frame.payloadSize;
+          frame.lent = frame.payloadSize > 0;
+          frame.data = frame.lent ? stream.read(frame.payloadSize) : emptyPayload;
+          frame.payload = null;
+          
+          // unmask in place on the read view
+          if (frame.masked && frame.lent)
+            WebsockMask.apply(frame.data, frame.mask);
+          
+          decodeState = DecodeState.Header;
+          processFrame(stream);
+          metrics.frameReceived(opcode.value(), payloadSize, timed ? System.nanoTime() - start : 0);
+          break;
+        }
+      }
     }
   }
   
-  private void parsePayload() {
-    client.read(frame.payloadSize, payload -> {
-      frame.payload = payload;
-      
-      if (frame.masked && frame.mask != null)
-        for (int i = 0; i < frame.payloadSize; i++)
-          frame.payload[i] ^= frame.mask[i % 4];
+  private boolean checkSize() {
+    // limits are enforced on the header, before the payload is buffered
+    long message = frame.payloadSize;
+    if (frame.opcode == WebsockOpcode.Continue || !frame.fin)
+      message += fragmentBuilder.size();
+    if (frame.payloadSize > maxFrameSize || message > maxMessageSize) {
+      fail(1009);
+      return false;
+    }
+    return true;
+  }
+  
+  private byte[] payloadBytes() {
+    if (frame.payload == null) {
+      frame.payload = new byte[frame.payloadSize];
+      frame.data.duplicate().get(frame.payload);
+    }
+    return frame.payload;
+  }
+  
+  private void releasePayload(final ByteBufferStream stream) {
+    if (frame.lent)
+      stream.release();
+    frame.lent = false;
+    frame.data = null;
+  }
   
-      processFrame();
+  private void recordRtt(final long nanos) {
+    LatencyHistogram histogram = pingRtt;
+    if (histogram == null)
+      pingRtt = histogram = new LatencyHistogram();
+    histogram.record(nanos);
+    serverPingRtt.record(nanos);
+  }
+  
+  private void backlog(final boolean paused) {
+    // flag and socket state change together, a late pause cannot outlive the resume
+    synchronized (dispatchPaused) {
+      if (dispatchPaused.compareAndSet(!paused, paused))
+        client.setBacklogPaused(paused);
+    }
+  }
+  
+  private void streamFragment(final ByteBufferStream stream, final boolean start, final boolean end) {
+    if (start)
+      messageOpcode = frame.opcode;
+    final boolean binary = messageOpcode == WebsockOpcode.Binary;
+    final ByteBuffer data = frame.data;
+    final boolean lent = frame.lent;
+    final Consumer<Boolean> onStart = messageStartCallback;
+    final Consumer<ByteBuffer> onFragment = fragmentCallback;
+    final Runnable onEnd = messageEndCallback;
+    frame.lent = false;
+    frame.data = null;
+    
+    dispatchFrame(() -> {
+      try {
+        if (start && onStart != null)
+          onStart.accept(binary);
+        if (onFragment != null && data.hasRemaining())
+          onFragment.accept(data.duplicate());
+        if (end && onEnd != null)
+          onEnd.run();
+      } finally {
+        if (lent)
+          stream.release();
+      }
     });
   }
   
-  private void processFrame() {
-
+  private void dispatchFrame(final Runnable task) {
+    // dispatched frames hold on to read buffers, stop reading while handlers lag behind
+    if (pendingDispatches.incrementAndGet() >= MaxPendingFragments)
+      backlog(true);
+    client.dispatch(() -> {
+      try {
+        task.run();
+      } finally {
+        if (pendingDispatches.decrementAndGet() <= MaxPendingFragments / 2)
+          backlog(false);
+      }
+    });
+  }
+  
+  private void processFrame(final ByteBufferStream stream) {
+    
+    // with a fragment handler set, uncompressed messages are not reassembled
+    if (!frame.opcode.isControl()) {
+      if (frame.opcode != WebsockOpcode.Continue)
+        messageStreamed = fragmentCallback != null;
+      if (messageStreamed && !messageCompressed) {
+        streamFragment(stream, frame.opcode != WebsockOpcode.Continue, frame.fin);
+        return;
+      }
+    }
+    
     if (!frame.fin || frame.opcode == WebsockOpcode.Continue) {
-      fragmentBuilder.write(frame.payload);
-      parseHeaders();
-      return;
+      if (frame.opcode != WebsockOpcode.Continue)
+        messageOpcode = frame.opcode;
+      fragmentBuilder.write(frame.data);
+      releasePayload(stream);
+      if (!frame.fin)
+        return;
       
-    } else {
-      final int fragSize = fragmentBuilder.size();
-      if (fragSize > 0) {
-        byte[] combined = Arrays.copyOf(fragmentBuilder.read(fragSize), fragSize + frame.payloadSize);
-        System.arraycopy(frame.payload, 0, combined, fragSize, frame.payloadSize);
-        frame.payload = null;
-        frame.payload = combined;
-        frame.payloadSize = fragSize + frame.payloadSize;
+      // reassembled fragments are handed over as one contiguous array
+      frame.opcode = messageOpcode;
+      frame.payloadSize = fragmentBuilder.size();
+      frame.payload = frame.payloadSize > 0 ? fragmentBuilder.read(frame.payloadSize) : new byte[0];
+      frame.data = ByteBuffer.wrap(frame.payload);
+    }
+    
+    if (messageCompressed && !frame.opcode.isControl()) {
+      messageCompressed = false;
+      try {
+        final byte[] inflated = deflate.decompress(frame.data, maxMessageSize);
+        releasePayload(stream);
+        frame.payload = inflated;
+        frame.payloadSize = inflated.length;
+        frame.data = ByteBuffer.wrap(inflated);
+      } catch (DataFormatException ex) {
+        releasePayload(stream);
+        fail(1007);
+        return;
+      } catch (BufferOverflowException ex) {
+        releasePayload(stream);
+        fail(1009);
+        return;
       }
     }
     
     switch (frame.opcode) {
       case Close: {
         // parse close data
-        int code = ((frame.payload[0] & 0xff) << 8) | (frame.payload[1] & 0xff);
-        String reason = null;
-        if (frame.payloadSize > 2) {
-          byte[] reasonData = new byte[frame.payloadSize - 2];
-          System.arraycopy(frame.payload, 2, reasonData, 0, reasonData.length);
-          reason = new String(reasonData, Charset.defaultCharset()); 
-        }
+        final byte[] closeData = payloadBytes();
+        final int closeSize = frame.payloadSize;
+        releasePayload(stream);
+        final int code = closeSize < 2 ? 1005 : ((closeData[0] & 0xff) << 8) | (closeData[1] & 0xff);
+        final String reason = closeSize > 2 ?
+          new String(closeData, 2, closeSize - 2, Charset.defaultCharset()) : null;
+        final BiConsumer<Integer, String> onClose = closeCallback;
         
         // client close response
         if (state == WebsockState.Closed) {
           closeConnection();
-          if (closeCallback != null)
-            closeCallback.accept(code, reason);
           
         // client initialized close
         } else {
-          send(frame.payload, frame.payloadSize, WebsockOpcode.Close, () -> {
+          send(closeData, closeSize, WebsockOpcode.Close, () -> {
             closeConnection();
           });
           state = WebsockState.Closed;
-          if (closeCallback != null)
-            closeCallback.accept(code, reason);
+          closeDeadline();
         }
+        
+        if (onClose != null)
+          client.dispatch(() -> onClose.accept(code, reason));
         break;
       }
         
       case Ping: {
-        final byte[] pingData = Arrays.copyOf(frame.payload, frame.payloadSize);
-        send(frame.payload, frame.payloadSize, WebsockOpcode.Pong, () -> {
-          if (pongCallback != null && isConnected())
-            pongCallback.accept(pingData);
+        final byte[] pingData = payloadBytes();
+        final int pingSize = frame.payloadSize;
+        releasePayload(stream);
+        final Consumer<byte[]> onPong = pongCallback;
+        send(pingData, pingSize, WebsockOpcode.Pong, () -> {
+          if (onPong != null && isConnected())
+            onPong.accept(pingData);
         });
         break;
       }
         
       case Pong: {
-        if (!pings.isEmpty()) {
-          final WebsockPing pingEvent = pings.remove();
-          final Long elapsed = (long)((System.nanoTime() - pingEvent.created) / 1e6);
-          pingEvent.callback.accept(elapsed, frame.payload);
+        final byte[] pongData = payloadBytes();
+        releasePayload(stream);
+        // unsolicited pongs match nothing and are ignored
+        final WebsockPing pingEvent = matchPing(pongData);
+        if (pingEvent != null) {
+          final long elapsed = System.nanoTime() - pingEvent.created;
+          missedPongs.set(0);
+          recordRtt(elapsed);
+          if (pingEvent.callback != null)
+            client.dispatch(() -> pingEvent.callback.accept(TimeUnit.NANOSECONDS.toMillis(elapsed), pongData));
         }
         break;
       }
         
       case Text:
-      case Binary:
-        if (messageCallback != null)
-          messageCallback.accept(frame.payload);
+      case Binary: {
+        // inflated messages reach fragment handlers in one piece
+        if (messageStreamed) {
+          streamFragment(stream, true, true);
+          break;
+        }
+        final ByteBuffer data = frame.data;
+        final byte[] payload = frame.payload;
+        final boolean lent = frame.lent;
+        final Consumer<byte[]> onMessage = messageCallback;
+        final Consumer<ByteBuffer> onMessageBuffer = messageBufferCallback;
+        frame.lent = false;
+        frame.data = null;
+        
+        dispatchFrame(() -> {
+          try {
+            if (onMessageBuffer != null)
+              onMessageBuffer.accept(data.duplicate());
+            if (onMessage != null) {
+              if (payload != null) {
+                onMessage.accept(payload);
+              } else {
+                final byte[] output = new byte[data.remaining()];
+                data.duplicate().get(output);
+                onMessage.accept(output);
+              }
+            }
+          } finally {
+            if (lent)
+              stream.release();
+          }
+        });
         break;
+      }
         
-      default: break;
+      default:
+        releasePayload(stream);
+        break;
     }
-    
-    parseHeaders();
   }
 }
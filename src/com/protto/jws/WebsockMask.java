@@ -0,0 +1,42 @@
+package com.protto.jws;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public final class WebsockMask {
+  
+  private static final boolean bigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+  
+  private WebsockMask() {
+  }
+  
+  // masking is its own inverse, the same call masks and unmasks
+  public static void apply(final ByteBuffer data, final byte[] mask) {
+    apply(data, mask, 0);
+  }
+  
+  // offset is the index of the first byte within the masked payload
+  public static void apply(final ByteBuffer data, final byte[] mask, final int offset) {
+    final ByteBuffer view = data.duplicate().order(ByteOrder.nativeOrder());
+    final int end = view.limit();
+    int i = view.position();
+    
+    // eight bytes per step, native order so loads and stores are not swapped
+    final long wide = wide(mask, offset);
+    for (; i + 8 <= end; i += 8)
+      view.putLong(i, view.getLong(i) ^ wide);
+    for (int j = offset; i < end; i++, j++)
+      view.put(i, (byte)(view.get(i) ^ mask[j & 3]));
+  }
+  
+  public static void apply(final byte[] data, final int start, final int length, final byte[] mask) {
+    apply(ByteBuffer.wrap(data, start, length), mask, 0);
+  }
+  
+  private static long wide(final byte[] mask, final int offset) {
+    long value = 0;
+    for (int i = 7; i >= 0; i--)
+      value = (value << 8) | (mask[(offset + i) & 3] & 0xffL);
+    return bigEndian ? Long.reverseBytes(value) : value;
+  }
+}
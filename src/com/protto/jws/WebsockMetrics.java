@@ -0,0 +1,41 @@
+package com.protto.jws;
+
+// called on reactor and worker threads, implementations must be thread safe
+// and cheap, durations are in nanoseconds
+public interface WebsockMetrics {
+  
+  WebsockMetrics Disabled = new WebsockMetrics() {};
+  
+  // per frame and per loop timings cost two clock reads each, they are only
+  // measured when asked for
+  default boolean isTimed() {
+    return false;
+  }
+  
+  default void connectionOpened() {
+  }
+  
+  default void connectionClosed() {
+  }
+  
+  default void handshakeCompleted(final long nanos) {
+  }
+  
+  default void handshakeFailed() {
+  }
+  
+  default void frameReceived(final int opcode, final long size, final long nanos) {
+  }
+  
+  default void frameSent(final long size) {
+  }
+  
+  default void bytesRead(final long count) {
+  }
+  
+  default void writeFlushed(final long bytes, final long nanos) {
+  }
+  
+  default void loopCompleted(final int events, final long nanos) {
+  }
+}
@@ -8,24 +8,65 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
 import java.nio.channels.spi.SelectorProvider;
+import java.nio.charset.Charset;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class WebsockServer {
   
+  public enum ReactorBalance {
+    RoundRobin, LeastLoaded;
+  }
+  
+  public enum ExecutionMode {
+    ThreadPool, VirtualThreads;
+  }
+  
+  public enum WriteOverflow {
+    Notify, DropNew, DropOldest, Close;
+  }
+  
   private final int port;
   private final Selector selector;
   private volatile boolean running;
   private final ExecutorService pool;
+  private final BufferPool bufferPool;
+  private final TopicRegistry topics;
+  private volatile PerMessageDeflate compression;
+  private final SocketReactor[] reactors;
+  private final AtomicInteger nextReactor;
+  private ReactorBalance reactorBalance;
+  private ExecutionMode executionMode;
+  private ExecutorService virtualPool;
+  private long writeLowWatermark;
+  private long writeHighWatermark;
+  private WriteOverflow writeOverflow;
+  private int maxFrameSize;
+  private int maxMessageSize;
+  private long handshakeTimeout;
+  private long readIdleTimeout;
+  private long writeIdleTimeout;
+  private long closeTimeout;
+  private long keepaliveInterval;
+  private int keepaliveMisses;
+  private final LatencyHistogram pingRtt;
+  private WebsockMetrics metrics;
   private final ServerSocketChannel server;
   private Consumer<WebsockClient> acceptCallback;
-  private final BlockingQueue<WebsockClient> clients;
+  private final AtomicLong nextClientId;
+  private final ConcurrentMap<Long, WebsockClient> clients;
   private BiConsumer<HttpRequest, HttpUpgrade> upgradeCallback;
   
   public WebsockServer() throws Exception {
@@ -37,12 +78,36 @@ public class WebsockServer {
   }
   
   public WebsockServer(final int sport, final int threads) throws Exception {
+    this(sport, threads, Runtime.getRuntime().availableProcessors());
+  }
+  
+  public WebsockServer(final int sport, final int threads, final int reactorCount) throws Exception {
     port = sport;
     running = false;
     pool = Executors.newFixedThreadPool(threads);
-    clients = new LinkedBlockingQueue<WebsockClient>();
+    bufferPool = new BufferPool();
+    topics = new TopicRegistry();
+    nextClientId = new AtomicLong();
+    clients = new ConcurrentHashMap<Long, WebsockClient>();
     selector = SelectorProvider.provider().openSelector();
     
+    nextReactor = new AtomicInteger();
+    reactorBalance = ReactorBalance.RoundRobin;
+    executionMode = ExecutionMode.ThreadPool;
+    writeLowWatermark = 256 * 1024;
+    writeHighWatermark = 1024 * 1024;
+    writeOverflow = WriteOverflow.Notify;
+    maxFrameSize = 16 * 1024 * 1024;
+    maxMessageSize = 64 * 1024 * 1024;
+    handshakeTimeout = 10000;
+    closeTimeout = 5000;
+    keepaliveMisses = 3;
+    pingRtt = new LatencyHistogram();
+    metrics = WebsockMetrics.Disabled;
+    reactors = new SocketReactor[Math.max(reactorCount, 1)];
+    for (int i = 0; i < reactors.length; i++)
+      reactors[i] = new SocketReactor(this, i);
+    
     server = ServerSocketChannel.open();
     server.socket().setReuseAddress(true);
     server.socket().setPerformancePreferences(2, 1, 0);
@@ -67,12 +132,224 @@ public class WebsockServer {
     return selector;
   }
   
+  public final SocketReactor[] getReactors() {
+    return reactors;
+  }
+  
+  public final ReactorBalance getReactorBalance() {
+    return reactorBalance;
+  }
+  
+  public WebsockServer setReactorBalance(final ReactorBalance balance) {
+    reactorBalance = balance;
+    return this;
+  }
+  
   public final ExecutorService getThreadPool() {
     return pool;
   }
   
-  public final BlockingQueue<WebsockClient> getClients() {
-    return clients;
+  public final ExecutorService getVirtualThreadPool() {
+    return virtualPool;
+  }
+  
+  public final ExecutionMode getExecutionMode() {
+    return executionMode;
+  }
+  
+  public WebsockServer setExecutionMode(final ExecutionMode mode) {
+    if (mode == ExecutionMode.VirtualThreads && virtualPool == null)
+      virtualPool = newVirtualThreadPool();
+    executionMode = mode;
+    return this;
+  }
+  
+  private static ExecutorService newVirtualThreadPool() {
+    // looked up reflectively so the server still runs on pre-21 JVMs
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", ex);
+    }
+  }
+  
+  public final long getWriteLowWatermark() {
+    return writeLowWatermark;
+  }
+  
+  public final long getWriteHighWatermark() {
+    return writeHighWatermark;
+  }
+  
+  public WebsockServer setWriteWatermarks(final long low, final long high) {
+    if (low < 0 || high < low)
+      throw new IllegalArgumentException("Invalid write watermarks " + low + "/" + high);
+    writeLowWatermark = low;
+    writeHighWatermark = high;
+    return this;
+  }
+  
+  public final WriteOverflow getWriteOverflow() {
+    return writeOverflow;
+  }
+  
+  public WebsockServer setWriteOverflow(final WriteOverflow policy) {
+    writeOverflow = policy;
+    return this;
+  }
+  
+  public final int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+  
+  public WebsockServer setMaxFrameSize(final int size) {
+    if (size < 125)
+      throw new IllegalArgumentException("Invalid max frame size " + size);
+    maxFrameSize = size;
+    return this;
+  }
+  
+  public final int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+  
+  public WebsockServer setMaxMessageSize(final int size) {
+    if (size < 125)
+      throw new IllegalArgumentException("Invalid max message size " + size);
+    maxMessageSize = size;
+    return this;
+  }
+  
+  public final long getHandshakeTimeout() {
+    return handshakeTimeout;
+  }
+  
+  public WebsockServer setHandshakeTimeout(final long millis) {
+    handshakeTimeout = checkTimeout(millis);
+    return this;
+  }
+  
+  public final long getReadIdleTimeout() {
+    return readIdleTimeout;
+  }
+  
+  public WebsockServer setReadIdleTimeout(final long millis) {
+    readIdleTimeout = checkTimeout(millis);
+    return this;
+  }
+  
+  public final long getWriteIdleTimeout() {
+    return writeIdleTimeout;
+  }
+  
+  public WebsockServer setWriteIdleTimeout(final long millis) {
+    writeIdleTimeout = checkTimeout(millis);
+    return this;
+  }
+  
+  public final long getCloseTimeout() {
+    return closeTimeout;
+  }
+  
+  public WebsockServer setCloseTimeout(final long millis) {
+    closeTimeout = checkTimeout(millis);
+    return this;
+  }
+  
+  public final long getKeepaliveInterval() {
+    return keepaliveInterval;
+  }
+  
+  public final int getKeepaliveMisses() {
+    return keepaliveMisses;
+  }
+  
+  // ping every open connection each interval, close it after maxMissed
+  // consecutive unanswered pings, an interval of 0 turns keepalive off
+  public WebsockServer setKeepalive(final long intervalMillis, final int maxMissed) {
+    if (maxMissed < 1)
+      throw new IllegalArgumentException("Invalid missed pong limit " + maxMissed);
+    keepaliveInterval = checkTimeout(intervalMillis);
+    keepaliveMisses = maxMissed;
+    return this;
+  }
+  
+  public final LatencyHistogram getPingRtt() {
+    return pingRtt;
+  }
+  
+  public final WebsockMetrics getMetrics() {
+    return metrics;
+  }
+  
+  // set before start, connections keep the instance they were opened with
+  public WebsockServer setMetrics(final WebsockMetrics metrics) {
+    this.metrics = metrics != null ? metrics : WebsockMetrics.Disabled;
+    return this;
+  }
+  
+  public long getQueuedWrites() {
+    long total = 0;
+    for (final WebsockClient client : clients.values())
+      total += client.getSocketClient().getQueuedWrites();
+    return total;
+  }
+  
+  public long getPendingWriteBytes() {
+    long total = 0;
+    for (final WebsockClient client : clients.values())
+      total += client.getSocketClient().getPendingBytes();
+    return total;
+  }
+  
+  // tasks waiting in connection executors and in the shared pool
+  public long getExecutorBacklog() {
+    long total = 0;
+    for (final WebsockClient client : clients.values())
+      total += client.getSocketClient().getPendingTasks();
+    if (pool instanceof ThreadPoolExecutor)
+      total += ((ThreadPoolExecutor)pool).getQueue().size();
+    return total;
+  }
+  
+  private static long checkTimeout(final long millis) {
+    // zero disables a timeout
+    if (millis < 0)
+      throw new IllegalArgumentException("Invalid timeout " + millis);
+    return millis;
+  }
+  
+  public final BufferPool getBufferPool() {
+    return bufferPool;
+  }
+  
+  public final PerMessageDeflate getCompression() {
+    return compression;
+  }
+  
+  public WebsockServer setCompression(final PerMessageDeflate compression) {
+    this.compression = compression;
+    return this;
+  }
+  
+  public final TopicRegistry getTopics() {
+    return topics;
+  }
+  
+  public final Collection<WebsockClient> getClients() {
+    return clients.values();
+  }
+  
+  public final WebsockClient getClient(final long id) {
+    return clients.get(id);
+  }
+  
+  public final int getClientCount() {
+    return clients.size();
+  }
+  
+  protected void removeClient(final SocketClient client) {
+    clients.remove(client.getId());
   }
   
   public final SocketAddress getAddress() throws IOException {
@@ -89,29 +366,121 @@ public class WebsockServer {
     return this;
   }
   
+  public int broadcast(final String data) {
+    return broadcast(data.getBytes(Charset.defaultCharset()));
+  }
+  
+  public int broadcast(final byte[] data) {
+    return broadcast(ByteBuffer.wrap(data), WebsockClient.WebsockOpcode.Text, null);
+  }
+  
+  public int broadcast(final byte[] data, final Predicate<WebsockClient> filter) {
+    return broadcast(ByteBuffer.wrap(data), WebsockClient.WebsockOpcode.Text, filter);
+  }
+  
+  public int broadcastBytes(final byte[] data) {
+    return broadcast(ByteBuffer.wrap(data), WebsockClient.WebsockOpcode.Binary, null);
+  }
+  
+  public int broadcastBytes(final byte[] data, final Predicate<WebsockClient> filter) {
+    return broadcast(ByteBuffer.wrap(data), WebsockClient.WebsockOpcode.Binary, filter);
+  }
+  
+  public int broadcastBytes(final ByteBuffer data, final Predicate<WebsockClient> filter) {
+    return broadcast(data, WebsockClient.WebsockOpcode.Binary, filter);
+  }
+  
+  public int publish(final String topic, final String data) {
+    return publish(topic, data.getBytes(Charset.defaultCharset()));
+  }
+  
+  public int publish(final String topic, final byte[] data) {
+    return broadcast(topics.getSubscribers(topic), ByteBuffer.wrap(data), WebsockClient.WebsockOpcode.Text, null);
+  }
+  
+  public int publishBytes(final String topic, final byte[] data) {
+    return broadcast(topics.getSubscribers(topic), ByteBuffer.wrap(data), WebsockClient.WebsockOpcode.Binary, null);
+  }
+  
+  public int publishBytes(final String topic, final ByteBuffer data) {
+    return broadcast(topics.getSubscribers(topic), data, WebsockClient.WebsockOpcode.Binary, null);
+  }
+  
+  private int broadcast(final ByteBuffer data, final WebsockClient.WebsockOpcode opcode, final Predicate<WebsockClient> filter) {
+    return broadcast(clients.values(), data, opcode, filter);
+  }
+  
+  private int broadcast(final Collection<WebsockClient> targets, final ByteBuffer data,
+      final WebsockClient.WebsockOpcode opcode, final Predicate<WebsockClient> filter) {
+    if (targets.isEmpty())
+      return 0;
+    
+    int sent = 0;
+    SharedBuffer frame = null, compressed = null;
+    final PerMessageDeflate extension = compression;
+    
+    // deflate once for every client that negotiated compression
+    if (extension != null && data.remaining() >= extension.getMinSize())
+      compressed = new SharedBuffer(bufferPool, WebsockClient.encodeFrame(bufferPool, data, opcode, extension));
+    
+    try {
+      for (final WebsockClient client : targets) {
+        if (!client.isConnected() || (filter != null && !filter.test(client)))
+          continue;
+        if (compressed != null && client.hasCompression()) {
+          client.sendShared(compressed, true);
+        } else {
+          if (frame == null)
+            frame = new SharedBuffer(bufferPool, WebsockClient.encodeFrame(bufferPool, data, opcode));
+          client.sendShared(frame, false);
+        }
+        sent++;
+      }
+    } finally {
+      if (frame != null)
+        frame.release();
+      if (compressed != null)
+        compressed.release();
+    }
+    return sent;
+  }
+  
   private void acceptClient() throws IOException, InterruptedException {
     SocketChannel channel = server.accept();
     channel.socket().setTcpNoDelay(true);
     channel.socket().setPerformancePreferences(0, 2, 1);
     channel.configureBlocking(false);
     
-    final WebsockClient client = new WebsockClient(new SocketClient(this, channel));
-    client.getSocketClient().setKey(channel.register(
-      selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ, client));
+    final SocketReactor reactor = nextReactor();
+    final long id = nextClientId.incrementAndGet();
+    final WebsockClient client = new WebsockClient(new SocketClient(this, reactor, channel, id));
     client.onUpgrade(upgradeCallback);
     client.onConnect(acceptCallback);
-    clients.put(client);
+    clients.put(id, client);
+    metrics.connectionOpened();
+    reactor.register(client);
+  }
+  
+  private SocketReactor nextReactor() {
+    if (reactorBalance == ReactorBalance.LeastLoaded) {
+      SocketReactor best = reactors[0];
+      for (int i = 1; i < reactors.length; i++)
+        if (reactors[i].getConnectionCount() < best.getConnectionCount())
+          best = reactors[i];
+      return best;
+    }
+    return reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
   }
   
   private void dispose() {
     try {
-      while (!clients.isEmpty()) {
-        try {
-          clients.take().getSocketClient().close();
-        } catch (IOException ex) {
-          ex.printStackTrace();
-        }
-      }
+      for (final SocketReactor reactor : reactors)
+        reactor.stop();
+      for (final SocketReactor reactor : reactors)
+        reactor.join();
+      clients.clear();
+      if (bufferPool.isLeakDetection())
+        bufferPool.reportLeaks();
       
       for (final SelectionKey key : selector.keys()) {
         try {
@@ -130,10 +499,12 @@ public class WebsockServer {
   public void start() throws IOException {
     SelectionKey event;
     int selectedEvents;
-    WebsockClient client;
     Iterator<SelectionKey> events;
     
     running = true;
+    for (final SocketReactor reactor : reactors)
+      reactor.start();
+    
     System.out.printf("Server started on %s\n", getAddress().toString());
     while (running) {
       
@@ -147,23 +518,8 @@ public class WebsockServer {
         events.remove();
 
         try {
-          if (event.channel() == server && event.isValid()) {
+          if (event.channel() == server && event.isValid())
             acceptClient();
-          } else {
-            
-            if (!event.isValid()) {
-              if (event.attachment() instanceof WebsockClient)
-                ((WebsockClient)event.attachment()).getSocketClient().close();
-              continue;
-            }
-            
-            client = (WebsockClient)event.attachment();
-            client.getSocketClient().setKey(event);
-            if (event.isWritable() && event.isValid())
-              client.getSocketClient().performWrite();
-            if (event.isReadable() && event.isValid())
-              client.getSocketClient().performRead();
-          }
           
         } catch (CancelledKeyException ex) {
           